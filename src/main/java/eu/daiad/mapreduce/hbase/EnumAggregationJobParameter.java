@@ -16,6 +16,10 @@ public enum EnumAggregationJobParameter {
      * HBase output table.
      */
     OUTPUT_TABLE("daiad.hbase.table.output"),
+    /**
+     * HBase output table of the estimated aggregates of a sampling job.
+     */
+    SAMPLE_OUTPUT_TABLE("daiad.hbase.table.sample"),
     /**
      * Default column family for input/output tables.
      */
@@ -24,6 +28,14 @@ public enum EnumAggregationJobParameter {
      * Number of partitions.
      */
     PARTITIONS("daiad.hbase.data.partitions"),
+    /**
+     * Strategy used for assigning input rows to partitions.
+     */
+    PARTITION_STRATEGY("daiad.hbase.data.partitions.strategy"),
+    /**
+     * Enables discovering the partitions present in the input table.
+     */
+    PARTITIONS_DISCOVER("daiad.hbase.data.partitions.discover"),
     /**
      * Date interval format.
      */
@@ -36,6 +48,10 @@ public enum EnumAggregationJobParameter {
      * Date interval end instant.
      */
     DATE_TO("daiad.interval.to"),
+    /**
+     * Enables aggregating the exact date interval without padding.
+     */
+    INTERVAL_EXACT("daiad.interval.exact"),
     /**
      * Top-k / Bottom-k query limit.
      */
@@ -47,7 +63,120 @@ public enum EnumAggregationJobParameter {
     /**
      * Cached file with users.
      */
-    FILENAME_USERS("daiad.filename.users");
+    FILENAME_USERS("daiad.filename.users"),
+    /**
+     * Cached compiled group index file. Set by the job driver.
+     */
+    FILENAME_GROUP_INDEX("daiad.filename.groups.index"),
+    /**
+     * Cached meter dictionary file. Set by the job driver.
+     */
+    FILENAME_METERS("daiad.filename.meters"),
+    /**
+     * Enables compiling the groups file to a binary index in the job driver.
+     */
+    GROUP_INDEX_COMPILE("daiad.groups.index.compile"),
+    /**
+     * Enables filtering the input table rows of meters that are not group
+     * members on the region servers.
+     */
+    SCAN_FILTER("daiad.hbase.scan.filter"),
+    /**
+     * Target size of an input split in megabytes.
+     */
+    SPLIT_SIZE("daiad.hbase.split.size"),
+    /**
+     * Time bucket interval of the input table rows in seconds. Set by the job
+     * driver.
+     */
+    TIME_BUCKET_INTERVAL("daiad.hbase.data.interval"),
+    /**
+     * Number of rows fetched by every scanner RPC.
+     */
+    SCAN_CACHING("daiad.hbase.scan.caching"),
+    /**
+     * Maximum number of cells returned for a row in a single result.
+     */
+    SCAN_BATCH("daiad.hbase.scan.batch"),
+    /**
+     * Maximum size in bytes of the results returned by every scanner RPC.
+     */
+    SCAN_MAX_RESULT_SIZE("daiad.hbase.scan.max-result-size"),
+    /**
+     * Enables the small scan hint.
+     */
+    SCAN_SMALL("daiad.hbase.scan.small"),
+    /**
+     * Enables caching the blocks read by the scans on the region servers.
+     */
+    SCAN_CACHE_BLOCKS("daiad.hbase.scan.cache-blocks"),
+    /**
+     * Enables filtering the cells not decoded by the mappers on the region
+     * servers.
+     */
+    SCAN_PROJECTION("daiad.hbase.scan.projection"),
+    /**
+     * Enables reading the next scanner batch on a background thread while the
+     * mapper processes the current batch.
+     */
+    SCAN_PREFETCH("daiad.hbase.scan.prefetch"),
+    /**
+     * Maximum number of prefetched scanner batches.
+     */
+    SCAN_PREFETCH_QUEUE("daiad.hbase.scan.prefetch.queue"),
+    /**
+     * Name of the input table snapshot to read instead of scanning the region
+     * servers.
+     */
+    SNAPSHOT_NAME("daiad.hbase.snapshot.name"),
+    /**
+     * Enables taking the input table snapshot before the job is submitted and
+     * deleting it after the job completes.
+     */
+    SNAPSHOT_CREATE("daiad.hbase.snapshot.create"),
+    /**
+     * Number of mapper threads of every map task.
+     */
+    MAPPER_THREADS("daiad.mapper.threads"),
+    /**
+     * Enables counting the bytes allocated by the mappers.
+     */
+    ALLOCATION_COUNTER("daiad.mapper.allocation.counter"),
+    /**
+     * Enables in-mapper aggregation of map output values.
+     */
+    IN_MAPPER_COMBINER("daiad.mapper.combiner.enabled"),
+    /**
+     * Memory budget of the in-mapper combiner in megabytes.
+     */
+    IN_MAPPER_COMBINER_MEMORY("daiad.mapper.combiner.memory"),
+    /**
+     * Minimum ratio of the values read to the values written by the combiner
+     * for a granularity level. Levels below the ratio are bypassed.
+     */
+    COMBINER_BYPASS_RATIO("daiad.combiner.bypass.ratio"),
+    /**
+     * Number of values the combiner reads for a granularity level before
+     * deciding whether to bypass it.
+     */
+    COMBINER_BYPASS_SAMPLE("daiad.combiner.bypass.sample"),
+    /**
+     * Enables deriving the coarser granularity levels in the reducers.
+     */
+    ROLLUP("daiad.rollup.enabled"),
+    /**
+     * Comma separated list of the granularity levels to aggregate.
+     */
+    GRANULARITIES("daiad.granularities"),
+    /**
+     * Comma separated list of the group types and group keys to aggregate.
+     */
+    GROUPS("daiad.groups.include"),
+    /**
+     * Fraction of the meters to aggregate. If less than one, estimates of the
+     * aggregates of all meters are written to the sample output table.
+     */
+    SAMPLE_FRACTION("daiad.sample.fraction");
 
     private final String value;
 
@@ -0,0 +1,122 @@
+package eu.daiad.mapreduce.hbase.combiner;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+import eu.daiad.mapreduce.hbase.model.EnumGranularity;
+
+/**
+ * Decides for every granularity level whether the combiner of a task reduces
+ * the map output.
+ *
+ * The combiner counts the values it reads and the values it writes for every
+ * granularity level. Once the values read for a level reach the sample size,
+ * the level is bypassed if the ratio of the values read to the values written
+ * is less than the minimum ratio. The values of a bypassed level are written
+ * unchanged for the rest of the task, since the reducers merge the values of
+ * every meter anyway.
+ *
+ * The framework creates a new combiner instance for every spill, hence the
+ * state is shared by all combiner instances of a task attempt.
+ */
+public class CombinerBypass {
+
+    /**
+     * Default minimum ratio of the values read to the values written.
+     */
+    private static final float DEFAULT_RATIO = 1.25f;
+
+    /**
+     * Default number of values read for a granularity level before deciding.
+     */
+    private static final long DEFAULT_SAMPLE = 10000;
+
+    /**
+     * Counters of the bypassed granularity levels, in the order of
+     * {@link EnumGranularity}.
+     */
+    private static enum Counters {
+        COMBINER_BYPASSED_HOUR,
+        COMBINER_BYPASSED_DAY,
+        COMBINER_BYPASSED_WEEK,
+        COMBINER_BYPASSED_MONTH,
+        COMBINER_BYPASSED_YEAR
+    }
+
+    private static CombinerBypass current;
+
+    private final TaskAttemptID taskId;
+
+    private final float ratio;
+
+    private final long sample;
+
+    private final long[] inputValues = new long[EnumGranularity.values().length];
+
+    private final long[] outputValues = new long[EnumGranularity.values().length];
+
+    private final boolean[] decided = new boolean[EnumGranularity.values().length];
+
+    private final boolean[] bypassed = new boolean[EnumGranularity.values().length];
+
+    private CombinerBypass(TaskAttemptID taskId, Configuration conf) {
+        this.taskId = taskId;
+        this.ratio = conf.getFloat(EnumAggregationJobParameter.COMBINER_BYPASS_RATIO.getValue(), DEFAULT_RATIO);
+        this.sample = Math.max(1, conf.getLong(EnumAggregationJobParameter.COMBINER_BYPASS_SAMPLE.getValue(), DEFAULT_SAMPLE));
+    }
+
+    /**
+     * Returns the state of the task attempt of a combiner.
+     *
+     * @param context the combiner context.
+     * @return the state of the task attempt.
+     */
+    public static synchronized CombinerBypass forTask(TaskAttemptContext context) {
+        if ((current == null) || (!current.taskId.equals(context.getTaskAttemptID()))) {
+            current = new CombinerBypass(context.getTaskAttemptID(), context.getConfiguration());
+        }
+        return current;
+    }
+
+    /**
+     * Returns true if the values of a granularity level must be written
+     * unchanged.
+     *
+     * @param granularity the granularity value stored in the row key.
+     * @return true if the granularity level is bypassed.
+     */
+    public boolean isBypassed(byte granularity) {
+        return bypassed[EnumGranularity.fromValue(granularity).ordinal()];
+    }
+
+    /**
+     * Records the values read and written for a single key. If the sample
+     * size of the granularity level is reached, the level is bypassed if the
+     * combiner does not reduce its values.
+     *
+     * @param granularity the granularity value stored in the row key.
+     * @param input the number of values read.
+     * @param output the number of values written.
+     * @param context the combiner context.
+     */
+    public void update(byte granularity, long input, long output, TaskAttemptContext context) {
+        int index = EnumGranularity.fromValue(granularity).ordinal();
+        if (decided[index]) {
+            return;
+        }
+
+        inputValues[index] += input;
+        outputValues[index] += output;
+
+        if (inputValues[index] >= sample) {
+            decided[index] = true;
+            if (inputValues[index] < ratio * outputValues[index]) {
+                bypassed[index] = true;
+                context.getCounter(Counters.values()[index]).increment(1);
+            }
+        }
+    }
+
+}
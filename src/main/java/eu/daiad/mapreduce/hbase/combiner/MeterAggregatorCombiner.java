@@ -1,20 +1,26 @@
 package eu.daiad.mapreduce.hbase.combiner;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Reducer;
 
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
 import eu.daiad.mapreduce.hbase.model.MeterDataWritable;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
 
 /**
  * Reducer for smart water meter data aggregation job.
+ *
+ * Map output keys are sorted by meter, hence the values of a meter arrive
+ * contiguously. Values are merged into a single reusable slot that is written
+ * when the values of the next meter arrive, hence every value is processed
+ * in constant time and no value is copied.
+ *
+ * Granularity levels whose values are not reduced are bypassed for the rest
+ * of the task as decided by {@link CombinerBypass}.
  */
-public class MeterAggregatorCombiner extends Reducer<ImmutableBytesWritable, MeterDataWritable, ImmutableBytesWritable, MeterDataWritable> {
+public class MeterAggregatorCombiner extends Reducer<RowKeyWritable, MeterDataWritable, RowKeyWritable, MeterDataWritable> {
 
     /**
      * Counter for the reducer.
@@ -22,60 +28,94 @@ public class MeterAggregatorCombiner extends Reducer<ImmutableBytesWritable, Met
     private static enum Counters {
         COMBINER_INPUT_ROWS,
         COMBINER_INPUT_VALUES,
-        COMBINER_OUTPUT_ROWS
+        COMBINER_OUTPUT_ROWS,
+        COMBINER_BYPASSED_VALUES
     }
 
+    /**
+     * Key of the meter in the slot.
+     */
+    private RowKeyWritable slotKey = new RowKeyWritable();
+
+    /**
+     * Partial aggregates of the meter in the slot.
+     */
+    private MeterDataWritable slot = new MeterDataWritable();
+
+    private Counter inputRowsCounter;
+
+    private Counter inputValuesCounter;
+
+    private Counter outputRowsCounter;
+
+    private Counter bypassedValuesCounter;
+
+    private CombinerBypass bypass;
+
     /**
      * Called once at the start of the task.
      */
     @Override
-    protected void setup(Reducer<ImmutableBytesWritable, MeterDataWritable, ImmutableBytesWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
+    protected void setup(Reducer<RowKeyWritable, MeterDataWritable, RowKeyWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
         super.setup(context);
+
+        inputRowsCounter = context.getCounter(Counters.COMBINER_INPUT_ROWS);
+        inputValuesCounter = context.getCounter(Counters.COMBINER_INPUT_VALUES);
+        outputRowsCounter = context.getCounter(Counters.COMBINER_OUTPUT_ROWS);
+        bypassedValuesCounter = context.getCounter(Counters.COMBINER_BYPASSED_VALUES);
+
+        bypass = CombinerBypass.forTask(context);
     }
 
     /**
      * This method is called once for each key.
      */
     @Override
-    public void reduce(ImmutableBytesWritable key, Iterable<MeterDataWritable> values, Context context) throws IOException, InterruptedException {
-        List<byte[]> serialHashes = new ArrayList<byte[]>();
-        List<MeterDataWritable> writables = new ArrayList<MeterDataWritable>();
+    public void reduce(RowKeyWritable key, Iterable<MeterDataWritable> values, Context context) throws IOException, InterruptedException {
+        inputRowsCounter.increment(1);
+
+        byte granularity = key.get()[GroupIndex.HASH_LENGTH];
+        if (bypass.isBypassed(granularity)) {
+            long count = 0;
+            for (MeterDataWritable value : values) {
+                context.write(key, value);
+                count++;
+            }
+            inputValuesCounter.increment(count);
+            outputRowsCounter.increment(count);
+            bypassedValuesCounter.increment(count);
+            return;
+        }
 
-        context.getCounter(Counters.COMBINER_INPUT_ROWS).increment(1);
+        boolean open = false;
+        long count = 0;
+        long written = 0;
 
         for (MeterDataWritable value : values) {
-            int index = indexOf(serialHashes, value.getSerialHash());
-            if (index < 0) {
-                writables.add(new MeterDataWritable(value));
-                serialHashes.add(ArrayUtils.clone(value.getSerialHash()));
+            if ((open) && (slot.getMeterId() == value.getMeterId())) {
+                slot.merge(value);
             } else {
-                writables.get(index).merge(value);
+                if (open) {
+                    context.write(slotKey, slot);
+                    written++;
+                }
+                // The key is updated by the iterator, hence it refers to the
+                // meter of the current value
+                slotKey.set(key.get(), 0);
+                slot.set(value);
+                open = true;
             }
-            context.getCounter(Counters.COMBINER_INPUT_VALUES).increment(1);
+            count++;
         }
 
-        for (MeterDataWritable w : writables) {
-            context.write(key, w);
-            context.getCounter(Counters.COMBINER_OUTPUT_ROWS).increment(1);
+        if (open) {
+            context.write(slotKey, slot);
+            written++;
         }
+        inputValuesCounter.increment(count);
+        outputRowsCounter.increment(written);
 
+        bypass.update(granularity, count, written, context);
     }
 
-    /**
-     * Checks if the a byte array is contained in a list of byte arrays.
-     *
-     * @param array the list of arrays to search.
-     * @param hash the array to find.
-     * @return the index of the item if it exists or -1.
-     */
-    private int indexOf(List<byte[]> array, byte[] hash) {
-        int index = 0;
-        for (byte[] entry : array) {
-            if (Arrays.equals(entry, hash)) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
 }
@@ -0,0 +1,96 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Includes only the cells whose column qualifier ends with one of the given
+ * suffixes. Column qualifiers of the input table are composed of the time
+ * stamp offset followed by the length and the bytes of the column name, hence
+ * a suffix composed of the name length and the name selects a measure for all
+ * time stamp offsets.
+ *
+ * The filter is evaluated by the region servers, hence the job jar must be
+ * on the class path of every region server. The filter is serialized as the
+ * length and the bytes of every suffix.
+ */
+public class QualifierSuffixFilter extends FilterBase {
+
+    private final byte[][] suffixes;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param suffixes the qualifier suffixes.
+     */
+    public QualifierSuffixFilter(byte[][] suffixes) {
+        this.suffixes = suffixes;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(Cell cell) {
+        byte[] qualifier = cell.getQualifierArray();
+        int offset = cell.getQualifierOffset();
+        int length = cell.getQualifierLength();
+
+        for (byte[] suffix : suffixes) {
+            if ((length >= suffix.length) &&
+                (Bytes.equals(qualifier, offset + length - suffix.length, suffix.length, suffix, 0, suffix.length))) {
+                return ReturnCode.INCLUDE;
+            }
+        }
+
+        return ReturnCode.SKIP;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] suffix : suffixes) {
+            out.write(suffix.length);
+            out.write(suffix);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a filter from its serialized representation. Invoked by the
+     * region servers.
+     *
+     * @param bytes the bytes returned by {@link #toByteArray()}.
+     * @return the filter.
+     * @throws DeserializationException if the bytes are not a sequence of suffixes.
+     */
+    public static QualifierSuffixFilter parseFrom(byte[] bytes) throws DeserializationException {
+        List<byte[]> suffixes = new ArrayList<byte[]>();
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = bytes[offset] & 0xFF;
+            if (offset + 1 + length > bytes.length) {
+                throw new DeserializationException("Serialized qualifier suffix exceeds the filter length.");
+            }
+            suffixes.add(Bytes.copy(bytes, offset + 1, length));
+            offset += 1 + length;
+        }
+
+        return new QualifierSuffixFilter(suffixes.toArray(new byte[suffixes.size()][]));
+    }
+
+    @Override
+    public String toString() {
+        List<String> values = new ArrayList<String>();
+        for (byte[] suffix : suffixes) {
+            values.add(Bytes.toStringBinary(suffix));
+        }
+        return String.format("%s %s", getClass().getSimpleName(), values);
+    }
+
+}
@@ -0,0 +1,161 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+
+/**
+ * Filters the rows of the input table whose meter is not a member of any
+ * group. The MD5 hash of the meter serial number is stored at offset
+ * {@link #SERIAL_HASH_OFFSET} of the row key.
+ *
+ * The filter is evaluated by the region servers, hence the job jar must be
+ * on the class path of every region server. The filter is serialized as the
+ * sorted, distinct serial hashes; a row key is accepted if a binary search
+ * finds its serial hash.
+ */
+public class SerialHashFilter extends FilterBase {
+
+    /**
+     * Offset of the serial hash inside the row key. The row key starts with
+     * the short partition and the long time bucket.
+     */
+    public static final int SERIAL_HASH_OFFSET = 10;
+
+    /**
+     * Sorted, distinct serial hashes of length {@link GroupIndex#HASH_LENGTH}.
+     */
+    private final byte[] hashes;
+
+    private final int count;
+
+    private boolean filterOutRow = false;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param serialHashes the MD5 hashes of the serial numbers of the group
+     * members. The collection may contain duplicates.
+     */
+    public SerialHashFilter(Collection<byte[]> serialHashes) {
+        List<byte[]> sorted = new ArrayList<byte[]>(serialHashes);
+        Collections.sort(sorted, Bytes.BYTES_COMPARATOR);
+
+        byte[] hashes = new byte[sorted.size() * GroupIndex.HASH_LENGTH];
+        int count = 0;
+        for (byte[] hash : sorted) {
+            if ((count > 0) &&
+                (Bytes.equals(hash, 0, GroupIndex.HASH_LENGTH, hashes, (count - 1) * GroupIndex.HASH_LENGTH, GroupIndex.HASH_LENGTH))) {
+                continue;
+            }
+            System.arraycopy(hash, 0, hashes, count * GroupIndex.HASH_LENGTH, GroupIndex.HASH_LENGTH);
+            count++;
+        }
+
+        this.hashes = (count == sorted.size() ? hashes : Bytes.head(hashes, count * GroupIndex.HASH_LENGTH));
+        this.count = count;
+    }
+
+    private SerialHashFilter(byte[] hashes) {
+        this.hashes = hashes;
+        this.count = hashes.length / GroupIndex.HASH_LENGTH;
+    }
+
+    /**
+     * Returns the number of distinct serial hashes.
+     *
+     * @return the number of serial hashes.
+     */
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void reset() {
+        filterOutRow = false;
+    }
+
+    @Override
+    public boolean filterRowKey(byte[] buffer, int offset, int length) {
+        if (length < SERIAL_HASH_OFFSET + GroupIndex.HASH_LENGTH) {
+            filterOutRow = true;
+        } else {
+            filterOutRow = !contains(buffer, offset + SERIAL_HASH_OFFSET);
+        }
+        return filterOutRow;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(Cell cell) {
+        if (filterOutRow) {
+            return ReturnCode.NEXT_ROW;
+        }
+        return ReturnCode.INCLUDE;
+    }
+
+    @Override
+    public boolean filterRow() {
+        return filterOutRow;
+    }
+
+    /**
+     * Searches for a serial hash.
+     *
+     * @param buffer the array that contains the serial hash.
+     * @param offset the offset of the serial hash inside {@code buffer}.
+     * @return true if the serial hash is found.
+     */
+    private boolean contains(byte[] buffer, int offset) {
+        int low = 0, high = count - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = Bytes.compareTo(hashes, mid * GroupIndex.HASH_LENGTH, GroupIndex.HASH_LENGTH,
+                                         buffer, offset, GroupIndex.HASH_LENGTH);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        return hashes;
+    }
+
+    /**
+     * Creates a filter from its serialized representation. Invoked by the
+     * region servers.
+     *
+     * @param bytes the bytes returned by {@link #toByteArray()}.
+     * @return the filter.
+     * @throws DeserializationException if the bytes are not a sequence of hashes.
+     */
+    public static SerialHashFilter parseFrom(byte[] bytes) throws DeserializationException {
+        if ((bytes == null) || (bytes.length % GroupIndex.HASH_LENGTH != 0)) {
+            throw new DeserializationException("Serialized serial hash filter length is not a multiple of the hash length.");
+        }
+        return new SerialHashFilter(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%d serial hashes]", getClass().getSimpleName(), count);
+    }
+
+}
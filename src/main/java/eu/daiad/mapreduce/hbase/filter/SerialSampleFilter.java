@@ -0,0 +1,90 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+
+/**
+ * Filters the rows of the input table whose meter is not sampled. A row key
+ * is accepted if its serial hash is contained in the {@link MeterSample} with
+ * the given threshold.
+ *
+ * The filter is evaluated by the region servers, hence the job jar must be
+ * on the class path of every region server. The filter is serialized as the
+ * sample threshold.
+ */
+public class SerialSampleFilter extends FilterBase {
+
+    private final long threshold;
+
+    private boolean filterOutRow = false;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param threshold the threshold returned by {@link MeterSample#getThreshold()}.
+     */
+    public SerialSampleFilter(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void reset() {
+        filterOutRow = false;
+    }
+
+    @Override
+    public boolean filterRowKey(byte[] buffer, int offset, int length) {
+        if (length < SerialHashFilter.SERIAL_HASH_OFFSET + GroupIndex.HASH_LENGTH) {
+            filterOutRow = true;
+        } else {
+            filterOutRow = !MeterSample.contains(buffer, offset + SerialHashFilter.SERIAL_HASH_OFFSET, threshold);
+        }
+        return filterOutRow;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(Cell cell) {
+        if (filterOutRow) {
+            return ReturnCode.NEXT_ROW;
+        }
+        return ReturnCode.INCLUDE;
+    }
+
+    @Override
+    public boolean filterRow() {
+        return filterOutRow;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        return Bytes.toBytes(threshold);
+    }
+
+    /**
+     * Creates a filter from its serialized representation. Invoked by the
+     * region servers.
+     *
+     * @param bytes the bytes returned by {@link #toByteArray()}.
+     * @return the filter.
+     * @throws DeserializationException if the bytes are not a threshold.
+     */
+    public static SerialSampleFilter parseFrom(byte[] bytes) throws DeserializationException {
+        if ((bytes == null) || (bytes.length != Bytes.SIZEOF_LONG)) {
+            throw new DeserializationException("Serialized serial sample filter length is not the threshold length.");
+        }
+        return new SerialSampleFilter(Bytes.toLong(bytes));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [threshold %d]", getClass().getSimpleName(), threshold);
+    }
+
+}
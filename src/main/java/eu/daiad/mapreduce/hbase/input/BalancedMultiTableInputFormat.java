@@ -0,0 +1,209 @@
+package eu.daiad.mapreduce.hbase.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.mapreduce.MultiTableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+
+/**
+ * Input format that divides the region splits of the partition scans into
+ * sub-ranges of similar size.
+ *
+ * {@link MultiTableInputFormat} creates one split for every region a scan
+ * intersects and sets the size of the whole region as the split length. The
+ * region size is shared equally by all splits of the region and every split
+ * larger than the target size is divided into time bucket sub-ranges of equal
+ * length. Every partition scan starts and ends inside a single partition,
+ * hence a split key is composed of the partition and the time bucket of the
+ * input row key. Sub-range boundaries are multiples of the time bucket
+ * interval set by the job driver.
+ */
+public class BalancedMultiTableInputFormat extends MultiTableInputFormat {
+
+    /**
+     * Length of the partition and time bucket prefix of the input row key.
+     */
+    private static final int PREFIX_LENGTH = Bytes.SIZEOF_SHORT + Bytes.SIZEOF_LONG;
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException {
+        List<InputSplit> splits = super.getSplits(context);
+
+        Configuration conf = context.getConfiguration();
+
+        long targetSize = conf.getLong(EnumAggregationJobParameter.SPLIT_SIZE.getValue(), 0) * 1024L * 1024L;
+        if (targetSize <= 0) {
+            return splits;
+        }
+
+        long interval = conf.getLong(EnumAggregationJobParameter.TIME_BUCKET_INTERVAL.getValue(), 0);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Time bucket interval is not set.");
+        }
+
+        // Count the splits of every region
+        Map<TableName, byte[][]> startKeys = getStartKeys(conf, splits);
+
+        Map<String, Integer> regionSplits = new HashMap<String, Integer>();
+        for (InputSplit split : splits) {
+            String region = getRegion((TableSplit) split, startKeys);
+
+            Integer count = regionSplits.get(region);
+            regionSplits.put(region, (count == null ? 1 : count + 1));
+        }
+
+        List<InputSplit> result = new ArrayList<InputSplit>();
+        for (InputSplit split : splits) {
+            TableSplit tableSplit = (TableSplit) split;
+
+            long size = tableSplit.getLength() / regionSplits.get(getRegion(tableSplit, startKeys));
+
+            result.addAll(divide(tableSplit, size, targetSize, interval));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the region start keys of every table scanned by the splits.
+     *
+     * @param conf the job configuration.
+     * @param splits the splits.
+     * @return the sorted region start keys indexed by table.
+     * @throws IOException if the region locations cannot be read.
+     */
+    private Map<TableName, byte[][]> getStartKeys(Configuration conf, List<InputSplit> splits) throws IOException {
+        Map<TableName, byte[][]> startKeys = new HashMap<TableName, byte[][]>();
+
+        try (Connection connection = ConnectionFactory.createConnection(conf)) {
+            for (InputSplit split : splits) {
+                TableName table = ((TableSplit) split).getTable();
+                if (!startKeys.containsKey(table)) {
+                    try (RegionLocator locator = connection.getRegionLocator(table)) {
+                        startKeys.put(table, locator.getStartKeys());
+                    }
+                }
+            }
+        }
+
+        return startKeys;
+    }
+
+    /**
+     * Returns a key that identifies the region of a split.
+     *
+     * @param split the split.
+     * @param startKeys the sorted region start keys indexed by table.
+     * @return the region key.
+     */
+    private String getRegion(TableSplit split, Map<TableName, byte[][]> startKeys) {
+        int index = Arrays.binarySearch(startKeys.get(split.getTable()), split.getStartRow(), Bytes.BYTES_COMPARATOR);
+        if (index < 0) {
+            index = -(index + 1) - 1;
+        }
+        return split.getTable().getNameAsString() + "#" + index;
+    }
+
+    /**
+     * Divides a split into time bucket sub-ranges of equal length. The first
+     * and the last sub-range retain the start and the end row of the split.
+     * Every other sub-range boundary is a multiple of the time bucket
+     * interval, hence every sub-range contains at least one time bucket value
+     * of the input rows.
+     *
+     * @param split the split.
+     * @param size the estimated size of the split in bytes.
+     * @param targetSize the target size of a sub-range in bytes.
+     * @param interval the time bucket interval of the input rows in seconds.
+     * @return the sub-range splits.
+     * @throws IOException if the split scan cannot be read.
+     */
+    static List<InputSplit> divide(TableSplit split, long size, long targetSize, long interval) throws IOException {
+        List<InputSplit> result = new ArrayList<InputSplit>();
+
+        byte[] startRow = split.getStartRow();
+        byte[] endRow = split.getEndRow();
+
+        long count = (size + targetSize - 1) / targetSize;
+
+        if ((count < 2) || (startRow.length < Bytes.SIZEOF_SHORT) || (endRow.length < Bytes.SIZEOF_SHORT) ||
+            (Bytes.toShort(startRow, 0) != Bytes.toShort(endRow, 0))) {
+            result.add(split);
+            return result;
+        }
+
+        short partition = Bytes.toShort(startRow, 0);
+        long from = getTimeBucket(startRow);
+        long to = getTimeBucket(endRow);
+
+        // Sub-ranges must contain at least one time bucket value
+        count = Math.min(count, (to - from) / interval);
+        if (count < 2) {
+            result.add(split);
+            return result;
+        }
+
+        List<byte[]> boundaries = new ArrayList<byte[]>();
+        long previousBucket = from;
+        for (long i = 1; i < count; i++) {
+            long bucket = from + (long) ((double) (to - from) * i / count);
+            bucket = bucket - (bucket % interval);
+            if ((bucket <= previousBucket) || (bucket >= to)) {
+                continue;
+            }
+
+            byte[] row = new byte[PREFIX_LENGTH];
+            Bytes.putShort(row, 0, partition);
+            Bytes.putLong(row, Bytes.SIZEOF_SHORT, bucket);
+
+            boundaries.add(row);
+            previousBucket = bucket;
+        }
+
+        if (boundaries.isEmpty()) {
+            result.add(split);
+            return result;
+        }
+
+        long subRangeSize = size / (boundaries.size() + 1);
+
+        byte[] previous = startRow;
+        for (byte[] row : boundaries) {
+            result.add(new TableSplit(split.getTable(), split.getScan(), previous, row, split.getRegionLocation(), subRangeSize));
+
+            previous = row;
+        }
+        result.add(new TableSplit(split.getTable(), split.getScan(), previous, endRow, split.getRegionLocation(), subRangeSize));
+
+        return result;
+    }
+
+    /**
+     * Returns the time bucket of a row key. Missing trailing bytes are
+     * treated as zeros.
+     *
+     * @param row the row key.
+     * @return the time bucket.
+     */
+    private static long getTimeBucket(byte[] row) {
+        byte[] bytes = new byte[Bytes.SIZEOF_LONG];
+        System.arraycopy(row, Bytes.SIZEOF_SHORT, bytes, 0, Math.min(Bytes.SIZEOF_LONG, row.length - Bytes.SIZEOF_SHORT));
+        return Bytes.toLong(bytes);
+    }
+
+}
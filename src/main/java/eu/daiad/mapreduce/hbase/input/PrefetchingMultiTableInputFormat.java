@@ -0,0 +1,34 @@
+package eu.daiad.mapreduce.hbase.input;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+
+/**
+ * Input format that reads the rows of every split using a
+ * {@link PrefetchingRecordReader}. Splits are created as in
+ * {@link BalancedMultiTableInputFormat}.
+ */
+public class PrefetchingMultiTableInputFormat extends BalancedMultiTableInputFormat {
+
+    /**
+     * Default maximum number of prefetched batches.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 2;
+
+    @Override
+    public RecordReader<ImmutableBytesWritable, Result> createRecordReader(InputSplit split, TaskAttemptContext context)
+                    throws IOException, InterruptedException {
+        int capacity = context.getConfiguration().getInt(EnumAggregationJobParameter.SCAN_PREFETCH_QUEUE.getValue(),
+                                                         DEFAULT_QUEUE_SIZE);
+
+        return new PrefetchingRecordReader(super.createRecordReader(split, context), capacity);
+    }
+
+}
@@ -0,0 +1,232 @@
+package eu.daiad.mapreduce.hbase.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Record reader that reads the rows of a table split on a background thread.
+ *
+ * The rows are collected into batches of the scanner caching size and put in
+ * a bounded queue, hence the next scanner RPC is executed while the mapper
+ * processes the current batch.
+ */
+public class PrefetchingRecordReader extends RecordReader<ImmutableBytesWritable, Result> {
+
+    /**
+     * Job counters.
+     */
+    public static enum Counters {
+        /**
+         * Time in milliseconds the mapper has waited for the next batch.
+         */
+        PREFETCH_QUEUE_WAIT_MILLIS,
+        /**
+         * Time in milliseconds the background thread has waited for free
+         * space in the queue.
+         */
+        PREFETCH_PRODUCER_WAIT_MILLIS,
+        /**
+         * Number of batches read by the background thread.
+         */
+        PREFETCH_BATCHES;
+    }
+
+    /**
+     * Marks the end of the input.
+     */
+    private static final List<Result> END = new ArrayList<Result>(0);
+
+    /**
+     * Interval in milliseconds at which a blocked background thread checks
+     * if the reader has been closed.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    private final RecordReader<ImmutableBytesWritable, Result> reader;
+
+    private final BlockingQueue<List<Result>> queue;
+
+    private int batchSize;
+
+    private Thread producer;
+
+    private volatile boolean closed = false;
+
+    private volatile Throwable error;
+
+    private volatile float progress = 0;
+
+    private List<Result> batch;
+
+    private int position;
+
+    private ImmutableBytesWritable key = new ImmutableBytesWritable();
+
+    private Result value;
+
+    private Counter queueWaitCounter;
+
+    private Counter producerWaitCounter;
+
+    private Counter batchesCounter;
+
+    /**
+     * Creates a new reader.
+     *
+     * @param reader the reader of the table split.
+     * @param capacity the maximum number of batches in the queue.
+     */
+    public PrefetchingRecordReader(RecordReader<ImmutableBytesWritable, Result> reader, int capacity) {
+        this.reader = reader;
+        this.queue = new ArrayBlockingQueue<List<Result>>(Math.max(1, capacity));
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+        reader.initialize(split, context);
+
+        batchSize = Math.max(1, ((TableSplit) split).getScan().getCaching());
+
+        queueWaitCounter = context.getCounter(Counters.PREFETCH_QUEUE_WAIT_MILLIS);
+        producerWaitCounter = context.getCounter(Counters.PREFETCH_PRODUCER_WAIT_MILLIS);
+        batchesCounter = context.getCounter(Counters.PREFETCH_BATCHES);
+
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fetch();
+            }
+        }, "prefetching-record-reader");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Reads all rows of the split and puts them into the queue. Invoked by
+     * the background thread.
+     */
+    private void fetch() {
+        try {
+            List<Result> current = new ArrayList<Result>(batchSize);
+
+            while ((!closed) && (reader.nextKeyValue())) {
+                current.add(reader.getCurrentValue());
+
+                if (current.size() == batchSize) {
+                    progress = reader.getProgress();
+                    put(current);
+                    current = new ArrayList<Result>(batchSize);
+                }
+            }
+            if (!current.isEmpty()) {
+                put(current);
+            }
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            progress = 1;
+            try {
+                put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Puts a batch into the queue. Waits until the queue has free space or
+     * the reader is closed.
+     *
+     * @param current the batch.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private void put(List<Result> current) throws InterruptedException {
+        if (current != END) {
+            batchesCounter.increment(1);
+        }
+        if (queue.offer(current)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        while ((!closed) && (!queue.offer(current, POLL_INTERVAL, TimeUnit.MILLISECONDS))) {
+            // Wait for the mapper
+        }
+        producerWaitCounter.increment(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        if ((batch == null) || (position == batch.size())) {
+            if (batch == END) {
+                return false;
+            }
+
+            batch = queue.poll();
+            if (batch == null) {
+                long start = System.nanoTime();
+                batch = queue.take();
+                queueWaitCounter.increment(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            position = 0;
+
+            if (batch == END) {
+                if (error != null) {
+                    if (error instanceof IOException) {
+                        throw (IOException) error;
+                    }
+                    throw new IOException(error.getMessage(), error);
+                }
+                return false;
+            }
+        }
+
+        value = batch.get(position++);
+        key.set(value.getRow());
+
+        return true;
+    }
+
+    @Override
+    public ImmutableBytesWritable getCurrentKey() {
+        return key;
+    }
+
+    @Override
+    public Result getCurrentValue() {
+        return value;
+    }
+
+    @Override
+    public float getProgress() {
+        return progress;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+
+        if (producer != null) {
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        reader.close();
+    }
+
+}
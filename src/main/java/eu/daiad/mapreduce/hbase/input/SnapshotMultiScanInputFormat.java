@@ -0,0 +1,237 @@
+package eu.daiad.mapreduce.hbase.input;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.MultiTableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableSnapshotInputFormatImpl;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Input format that reads the HFiles of a table snapshot directly from the
+ * file system instead of scanning the region servers.
+ *
+ * The scans are configured as for {@link MultiTableInputFormat}. A split is
+ * created for every snapshot region a scan intersects and the split row range
+ * is the intersection of the scan and the region row ranges. Splits are
+ * {@link TableSplit} instances, hence the mappers handle them exactly as the
+ * splits of the region server scans.
+ */
+public class SnapshotMultiScanInputFormat extends InputFormat<ImmutableBytesWritable, Result> {
+
+    /**
+     * Configures the job to read a snapshot. The snapshot regions are
+     * restored as references to the snapshot files in a new folder inside the
+     * restore directory. The restore directory must be on the file system of
+     * the HBase root directory but outside of it.
+     *
+     * @param conf the job configuration.
+     * @param snapshotName the snapshot name.
+     * @param restoreDir the restore directory.
+     * @throws IOException if the snapshot cannot be restored.
+     */
+    public static void setInput(Configuration conf, String snapshotName, Path restoreDir) throws IOException {
+        TableSnapshotInputFormatImpl.setInput(conf, snapshotName, restoreDir);
+
+        // The tasks read the files directly, hence the region server block
+        // cache settings must not allocate memory in the mappers
+        TableMapReduceUtil.resetCacheConfig(conf);
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+
+        String[] scans = conf.getStrings(MultiTableInputFormat.SCANS);
+        if ((scans == null) || (scans.length == 0)) {
+            throw new IllegalArgumentException("There must be at least 1 scan configuration set to : " + MultiTableInputFormat.SCANS);
+        }
+
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+
+        for (String value : scans) {
+            Configuration scanConf = new Configuration(conf);
+            scanConf.set(TableInputFormat.SCAN, value);
+
+            Scan scan = toScan(value);
+
+            for (TableSnapshotInputFormatImpl.InputSplit regionSplit : TableSnapshotInputFormatImpl.getSplits(scanConf)) {
+                HRegionInfo region = regionSplit.getRegionInfo();
+
+                byte[] startRow = scan.getStartRow();
+                if ((startRow.length == 0) || (Bytes.compareTo(region.getStartKey(), startRow) > 0)) {
+                    startRow = region.getStartKey();
+                }
+
+                byte[] stopRow = scan.getStopRow();
+                if ((stopRow.length == 0) ||
+                    ((region.getEndKey().length > 0) && (Bytes.compareTo(region.getEndKey(), stopRow) < 0))) {
+                    stopRow = region.getEndKey();
+                }
+
+                splits.add(new SnapshotTableSplit(scan, startRow, stopRow, regionSplit));
+            }
+        }
+
+        return splits;
+    }
+
+    @Override
+    public RecordReader<ImmutableBytesWritable, Result> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new SnapshotRecordReader();
+    }
+
+    /**
+     * Deserializes a scan stored in the job configuration.
+     *
+     * @param value the Base64 encoded protocol buffer of the scan.
+     * @return the scan.
+     * @throws IOException if the scan cannot be parsed.
+     */
+    private static Scan toScan(String value) throws IOException {
+        return ProtobufUtil.toScan(ClientProtos.Scan.parseFrom(Base64.decode(value)));
+    }
+
+    /**
+     * Serializes a scan for storing in a configuration.
+     *
+     * @param scan the scan.
+     * @return the Base64 encoded protocol buffer of the scan.
+     * @throws IOException if the scan cannot be serialized.
+     */
+    private static String fromScan(Scan scan) throws IOException {
+        return Base64.encodeBytes(ProtobufUtil.toScan(scan).toByteArray());
+    }
+
+    /**
+     * Split of a single snapshot region. The split is serialized as a
+     * {@link TableSplit} followed by the snapshot region.
+     */
+    public static class SnapshotTableSplit extends TableSplit {
+
+        private TableSnapshotInputFormatImpl.InputSplit regionSplit;
+
+        /**
+         * Default constructor used for deserialization.
+         */
+        public SnapshotTableSplit() {
+            regionSplit = new TableSnapshotInputFormatImpl.InputSplit();
+        }
+
+        /**
+         * Creates a new split.
+         *
+         * @param scan the scan.
+         * @param startRow the first row of the split.
+         * @param endRow the row after the last row of the split.
+         * @param regionSplit the snapshot region.
+         */
+        public SnapshotTableSplit(Scan scan, byte[] startRow, byte[] endRow, TableSnapshotInputFormatImpl.InputSplit regionSplit) {
+            super(regionSplit.getTableDescriptor().getTableName(),
+                  scan,
+                  startRow,
+                  endRow,
+                  (regionSplit.getLocations().length == 0 ? "" : regionSplit.getLocations()[0]),
+                  regionSplit.getLength());
+
+            this.regionSplit = regionSplit;
+        }
+
+        /**
+         * Returns the snapshot region.
+         *
+         * @return the snapshot region split.
+         */
+        public TableSnapshotInputFormatImpl.InputSplit getRegionSplit() {
+            return regionSplit;
+        }
+
+        @Override
+        public String[] getLocations() {
+            return regionSplit.getLocations();
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            super.write(out);
+            regionSplit.write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            super.readFields(in);
+            regionSplit.readFields(in);
+        }
+
+    }
+
+    /**
+     * Reads the rows of a split from the snapshot files of its region.
+     */
+    private static class SnapshotRecordReader extends RecordReader<ImmutableBytesWritable, Result> {
+
+        private TableSnapshotInputFormatImpl.RecordReader reader = new TableSnapshotInputFormatImpl.RecordReader();
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            SnapshotTableSplit snapshotSplit = (SnapshotTableSplit) split;
+
+            // The region scanner reads the scan from the configuration
+            Scan scan = new Scan(snapshotSplit.getScan());
+            scan.setStartRow(snapshotSplit.getStartRow());
+            scan.setStopRow(snapshotSplit.getEndRow());
+
+            Configuration conf = new Configuration(context.getConfiguration());
+            conf.set(TableInputFormat.SCAN, fromScan(scan));
+
+            reader.initialize(snapshotSplit.getRegionSplit(), conf);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            return reader.nextKeyValue();
+        }
+
+        @Override
+        public ImmutableBytesWritable getCurrentKey() {
+            return reader.getCurrentKey();
+        }
+
+        @Override
+        public Result getCurrentValue() {
+            return reader.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() {
+            return reader.getProgress();
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+
+    }
+
+}
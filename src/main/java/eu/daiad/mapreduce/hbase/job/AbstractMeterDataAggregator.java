@@ -1,12 +1,53 @@
 package eu.daiad.mapreduce.hbase.job;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.mapreduce.MultithreadedTableMapper;
+import org.apache.hadoop.hbase.mapreduce.TableMapper;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
 
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+import eu.daiad.mapreduce.hbase.EnumJobMapReduceParameter;
+import eu.daiad.mapreduce.hbase.filter.QualifierSuffixFilter;
+import eu.daiad.mapreduce.hbase.filter.SerialHashFilter;
+import eu.daiad.mapreduce.hbase.filter.SerialSampleFilter;
+import eu.daiad.mapreduce.hbase.input.SnapshotMultiScanInputFormat;
+import eu.daiad.mapreduce.hbase.model.DateUtils;
+import eu.daiad.mapreduce.hbase.model.Group;
+import eu.daiad.mapreduce.hbase.model.GroupCollection;
 import eu.daiad.mapreduce.hbase.model.Interval;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
 
 public abstract class AbstractMeterDataAggregator extends HBaseMapReduceJob {
 
+    /**
+     * Maximum absolute UTC offset of any time zone in milliseconds.
+     */
+    private static final long MAX_UTC_OFFSET = 14 * DateTimeConstants.MILLIS_PER_HOUR;
+
+    /**
+     * Default number of rows fetched by every scanner RPC.
+     */
+    private static final int DEFAULT_SCAN_CACHING = 1000;
+
     protected enum EnumTimeInterval {
         UNDEFINED(0), HOUR(3600), DAY(86400);
 
@@ -23,10 +64,80 @@ public abstract class AbstractMeterDataAggregator extends HBaseMapReduceJob {
 
     protected EnumTimeInterval interval;
 
+    /**
+     * Name of the snapshot taken by the job driver or null if no snapshot has
+     * been taken.
+     */
+    private String createdSnapshot;
+
     protected AbstractMeterDataAggregator(EnumTimeInterval interval) {
         this.interval = interval;
     }
 
+    /**
+     * Returns the UTC interval of the input table scans.
+     *
+     * By default, the date interval is padded by one month on each side. In
+     * exact interval mode, the local date time fields of the date interval
+     * are padded by the maximum absolute UTC offset of the group time zones
+     * and the end is extended to the end of its last hour.
+     *
+     * @param conf the job configuration.
+     * @return the scan interval.
+     */
+    protected Interval<DateTime> getScanDateInterval(Configuration conf) {
+        DateUtils dateUtils = new DateUtils(conf);
+        Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+
+        if (!dateUtils.isExact()) {
+            return dateInterval;
+        }
+
+        long padding = getMaxUtcOffset(dateInterval);
+
+        return new Interval<DateTime>(dateInterval.getFrom().minus(padding),
+                                      dateInterval.getTo().plusHours(1).plus(padding));
+    }
+
+    /**
+     * Returns the maximum absolute UTC offset of the group time zones inside
+     * a date interval. If the groups file is not available to the job
+     * driver, the maximum offset of any time zone is returned.
+     *
+     * @param dateInterval the date interval.
+     * @return the offset in milliseconds.
+     */
+    private long getMaxUtcOffset(Interval<DateTime> dateInterval) {
+        GroupCollection groups = getGroups();
+        if (groups == null) {
+            return MAX_UTC_OFFSET;
+        }
+
+        Set<DateTimeZone> timezones = new HashSet<DateTimeZone>();
+        for (Group group : groups.getValues()) {
+            timezones.add(group.getTimezone());
+        }
+
+        long from = dateInterval.getFrom().getMillis() - MAX_UTC_OFFSET;
+        long to = dateInterval.getTo().getMillis() + MAX_UTC_OFFSET;
+
+        long result = 0;
+        for (DateTimeZone timezone : timezones) {
+            long instant = from;
+            while (true) {
+                result = Math.max(result, Math.abs(timezone.getOffset(instant)));
+
+                long next = timezone.nextTransition(instant);
+                if ((next <= instant) || (next > to)) {
+                    break;
+                }
+                instant = next;
+            }
+        }
+
+        return result;
+    }
+
     protected Interval<byte[]> getScanRowKeyInterval(short partition, DateTime dateFrom, DateTime dateTo) {
         byte[] partitionBytes = Bytes.toBytes(partition);
 
@@ -55,4 +166,223 @@ public abstract class AbstractMeterDataAggregator extends HBaseMapReduceJob {
         return new Interval<byte[]>(fromRowKey, toRowKey);
     }
 
+    /**
+     * Sets a {@link SerialHashFilter} to the scan of a partition, hence the
+     * region servers return only the rows of group members. The filter
+     * contains the members of all partitions even if the partition of a meter
+     * is derived from its serial number, hence rows stored in a different
+     * partition reach the mappers that reject the input table layout.
+     *
+     * @param conf the job configuration.
+     * @param scan the scan.
+     * @throws IllegalArgumentException if the groups file is not available to the job driver.
+     */
+    protected void setScanFilter(Configuration conf, Scan scan) {
+        if (!conf.getBoolean(EnumAggregationJobParameter.SCAN_FILTER.getValue(), false)) {
+            return;
+        }
+
+        GroupCollection groups = getGroups();
+        if (groups == null) {
+            throw new IllegalArgumentException("Scan filter requires the groups file in the HDFS cache folder.");
+        }
+
+        MeterSample sample = MeterSample.fromConfiguration(conf);
+
+        List<byte[]> serialHashes = new ArrayList<byte[]>();
+        for (Group group : groups.getValues()) {
+            for (int m = 0, count = group.size(); m < count; m++) {
+                byte[] serialHash = group.getSerialHash(m);
+                if ((sample == null) || (sample.contains(serialHash, 0))) {
+                    serialHashes.add(serialHash);
+                }
+            }
+        }
+
+        addScanFilter(scan, new SerialHashFilter(serialHashes));
+    }
+
+    /**
+     * Sets a {@link SerialSampleFilter} to a scan if only a sample of the
+     * meters is aggregated, hence the region servers return only the rows of
+     * sampled meters.
+     *
+     * @param conf the job configuration.
+     * @param scan the scan.
+     */
+    protected void setSampleFilter(Configuration conf, Scan scan) {
+        MeterSample sample = MeterSample.fromConfiguration(conf);
+        if (sample != null) {
+            addScanFilter(scan, new SerialSampleFilter(sample.getThreshold()));
+        }
+    }
+
+    /**
+     * Returns the output table. If only a sample of the meters is aggregated,
+     * the estimates are written to the sample output table, hence the exact
+     * aggregates are never overwritten.
+     *
+     * @param conf the job configuration.
+     * @return the output table name.
+     * @throws IllegalArgumentException if a sample is aggregated and the sample
+     * output table is either not set or equal to the output table.
+     */
+    protected String getOutputTable(Configuration conf) {
+        String outputTableName = conf.get(EnumAggregationJobParameter.OUTPUT_TABLE.getValue());
+
+        if (MeterSample.fromConfiguration(conf) == null) {
+            return outputTableName;
+        }
+
+        String sampleTableName = conf.get(EnumAggregationJobParameter.SAMPLE_OUTPUT_TABLE.getValue());
+        if (StringUtils.isBlank(sampleTableName)) {
+            throw new IllegalArgumentException("Sampling requires the sample output table.");
+        }
+        if (sampleTableName.equals(outputTableName)) {
+            throw new IllegalArgumentException("Sample output table must not be the output table.");
+        }
+        return sampleTableName;
+    }
+
+    /**
+     * Sets the scanner RPC parameters of a scan.
+     *
+     * @param conf the job configuration.
+     * @param scan the scan.
+     * @param batch true if the mapper accepts rows split across multiple
+     * results. Otherwise, the batch size parameter is ignored.
+     */
+    protected void setScanProfile(Configuration conf, Scan scan, boolean batch) {
+        scan.setCaching(conf.getInt(EnumAggregationJobParameter.SCAN_CACHING.getValue(), DEFAULT_SCAN_CACHING));
+        scan.setCacheBlocks(conf.getBoolean(EnumAggregationJobParameter.SCAN_CACHE_BLOCKS.getValue(), false));
+        scan.setSmall(conf.getBoolean(EnumAggregationJobParameter.SCAN_SMALL.getValue(), false));
+
+        long maxResultSize = conf.getLong(EnumAggregationJobParameter.SCAN_MAX_RESULT_SIZE.getValue(), 0);
+        if (maxResultSize > 0) {
+            scan.setMaxResultSize(maxResultSize);
+        }
+
+        int batchSize = conf.getInt(EnumAggregationJobParameter.SCAN_BATCH.getValue(), 0);
+        if ((batch) && (batchSize > 0)) {
+            scan.setBatch(batchSize);
+        }
+    }
+
+    /**
+     * Sets a {@link QualifierSuffixFilter} to a scan, hence the region
+     * servers return only the cells decoded by the mapper.
+     *
+     * @param conf the job configuration.
+     * @param scan the scan.
+     * @param qualifierSuffixes the suffixes of the column qualifiers decoded by the mapper.
+     */
+    protected void setQualifierFilter(Configuration conf, Scan scan, byte[][] qualifierSuffixes) {
+        if (conf.getBoolean(EnumAggregationJobParameter.SCAN_PROJECTION.getValue(), false)) {
+            addScanFilter(scan, new QualifierSuffixFilter(qualifierSuffixes));
+        }
+    }
+
+    /**
+     * Runs several instances of the mapper on separate threads of every map
+     * task if more than one mapper thread is requested. The threads read the
+     * input split and write the map output through the synchronized task
+     * context and share a single group index.
+     *
+     * @param conf the job configuration.
+     * @param job the job.
+     * @param mapperClass the mapper class.
+     */
+    protected <K, V> void setMapperThreads(Configuration conf, Job job, Class<? extends TableMapper<K, V>> mapperClass) {
+        int threads = conf.getInt(EnumAggregationJobParameter.MAPPER_THREADS.getValue(), 1);
+        if (threads > 1) {
+            job.setMapperClass(MultithreadedTableMapper.class);
+
+            MultithreadedTableMapper.setMapperClass(job, mapperClass);
+            MultithreadedTableMapper.setNumberOfThreads(job, threads);
+        }
+    }
+
+    /**
+     * Configures the job to read the HFiles of a snapshot of the input table
+     * instead of scanning the region servers, if a snapshot name is set. The
+     * scans of the job are preserved. If requested, the snapshot is taken
+     * before the job is submitted and deleted by {@link #deleteSnapshot(Configuration)}.
+     *
+     * @param conf the job configuration.
+     * @param job the job.
+     * @throws IOException if the snapshot cannot be taken or restored.
+     * @throws IllegalArgumentException if the HDFS temporary folder is not set
+     * or if the split size or scanner prefetching is set.
+     */
+    protected void setSnapshotInput(Configuration conf, Job job) throws IOException {
+        String snapshotName = conf.get(EnumAggregationJobParameter.SNAPSHOT_NAME.getValue());
+        if (StringUtils.isBlank(snapshotName)) {
+            return;
+        }
+
+        String hdfsTmpDir = conf.get(EnumJobMapReduceParameter.HDFS_TMP_PATH.getValue());
+        if (StringUtils.isBlank(hdfsTmpDir)) {
+            throw new IllegalArgumentException("Snapshot input requires the HDFS temporary folder.");
+        }
+        if (conf.getLong(EnumAggregationJobParameter.SPLIT_SIZE.getValue(), 0) > 0) {
+            throw new IllegalArgumentException("Snapshot input cannot be combined with the split size.");
+        }
+        if (conf.getBoolean(EnumAggregationJobParameter.SCAN_PREFETCH.getValue(), false)) {
+            throw new IllegalArgumentException("Snapshot input cannot be combined with scanner prefetching.");
+        }
+
+        if (conf.getBoolean(EnumAggregationJobParameter.SNAPSHOT_CREATE.getValue(), false)) {
+            TableName table = TableName.valueOf(conf.get(EnumAggregationJobParameter.INPUT_TABLE.getValue()));
+
+            try (Connection connection = ConnectionFactory.createConnection(conf); Admin admin = connection.getAdmin()) {
+                admin.snapshot(snapshotName, table);
+            }
+            createdSnapshot = snapshotName;
+        }
+
+        // The restored region references are deleted when the file system is
+        // closed
+        Path restoreDir = new Path(hdfsTmpDir, String.format("snapshot-%d", System.currentTimeMillis()));
+
+        SnapshotMultiScanInputFormat.setInput(job.getConfiguration(), snapshotName, restoreDir);
+        restoreDir.getFileSystem(conf).deleteOnExit(restoreDir);
+
+        job.setInputFormatClass(SnapshotMultiScanInputFormat.class);
+    }
+
+    /**
+     * Deletes the snapshot taken by {@link #setSnapshotInput(Configuration, Job)}.
+     *
+     * @param conf the job configuration.
+     * @throws IOException if the snapshot cannot be deleted.
+     */
+    protected void deleteSnapshot(Configuration conf) throws IOException {
+        if (createdSnapshot == null) {
+            return;
+        }
+
+        try (Connection connection = ConnectionFactory.createConnection(conf); Admin admin = connection.getAdmin()) {
+            admin.deleteSnapshot(createdSnapshot);
+        }
+        createdSnapshot = null;
+    }
+
+    /**
+     * Adds a filter to a scan. If the scan already has a filter, a row must
+     * pass all filters.
+     *
+     * @param scan the scan.
+     * @param filter the filter to add.
+     */
+    private void addScanFilter(Scan scan, Filter filter) {
+        Filter current = scan.getFilter();
+        if (current == null) {
+            scan.setFilter(filter);
+        } else if (current instanceof FilterList) {
+            ((FilterList) current).addFilter(filter);
+        } else {
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, current, filter));
+        }
+    }
+
 }
@@ -1,9 +1,21 @@
 package eu.daiad.mapreduce.hbase.job;
 
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
@@ -13,11 +25,28 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.util.Tool;
 
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
 import eu.daiad.mapreduce.hbase.EnumHadoopParameter;
 import eu.daiad.mapreduce.hbase.EnumJobMapReduceParameter;
+import eu.daiad.mapreduce.hbase.model.CompiledGroupIndex;
+import eu.daiad.mapreduce.hbase.model.EnumPartitionStrategy;
+import eu.daiad.mapreduce.hbase.model.GroupCollection;
+import eu.daiad.mapreduce.hbase.model.GroupSelection;
+import eu.daiad.mapreduce.hbase.model.MeterDictionary;
 
 /**
  * Helper class for implementing the {@link Tool} interface for executing jobs
@@ -25,6 +54,30 @@ import eu.daiad.mapreduce.hbase.EnumJobMapReduceParameter;
  */
 public abstract class HBaseMapReduceJob extends Configured implements Tool {
 
+    /**
+     * Name of the compiled group index file in the working directory of the
+     * tasks.
+     */
+    private static final String GROUP_INDEX_FILENAME = "groups.idx";
+
+    /**
+     * Name of the meter dictionary file in the working directory of the
+     * tasks.
+     */
+    private static final String METER_DICTIONARY_FILENAME = "meters.txt";
+
+    /**
+     * Groups parsed from the groups file found in the HDFS cache folder or
+     * null if the groups file is not available to the job driver.
+     */
+    private GroupCollection groups;
+
+    /**
+     * Partitions found in the input table or null if the partitions are not
+     * discovered.
+     */
+    private short[] discoveredPartitions;
+
     /**
      * Configures the job.
      *
@@ -42,6 +95,12 @@ public abstract class HBaseMapReduceJob extends Configured implements Tool {
 
         addFilesToCache(conf, job);
 
+        discoverPartitions(conf, job);
+
+        groups = readGroups(conf);
+
+        compileGroupIndex(conf, job);
+
         configureJob(job);
 
         setScans(conf, job);
@@ -72,6 +131,37 @@ public abstract class HBaseMapReduceJob extends Configured implements Tool {
 	 */
 	protected abstract void configureJob(Job job);
 
+    /**
+     * Returns the groups parsed by the job driver.
+     *
+     * @return the groups or null if the groups file is not available to the
+     * job driver.
+     */
+    protected GroupCollection getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns the partitions to scan. If the partitions have been discovered,
+     * only the populated partitions are returned.
+     *
+     * @param conf the job configuration.
+     * @return the partitions.
+     */
+    protected short[] getPartitions(Configuration conf) {
+        if (discoveredPartitions != null) {
+            return discoveredPartitions;
+        }
+
+        short count = Short.parseShort(conf.get(EnumAggregationJobParameter.PARTITIONS.getValue()));
+
+        short[] partitions = new short[count];
+        for (short p = 0; p < count; p++) {
+            partitions[p] = p;
+        }
+        return partitions;
+    }
+
     /**
      * Add one or more archive paths to the current set of classpath entries. It
      * adds the archives to cache as well.
@@ -131,6 +221,274 @@ public abstract class HBaseMapReduceJob extends Configured implements Tool {
         }
     }
 
+    /**
+     * Finds the partition prefixes present in the input table. Discovery is
+     * performed if it is enabled or if the number of partitions is not set.
+     *
+     * Every probe is a key only scan that returns the first row at or after
+     * the start of a candidate partition. The partition of the returned row
+     * is populated and the next probe starts at the following partition,
+     * hence the number of probes is the number of populated partitions plus
+     * one.
+     *
+     * The number of partitions is set to the configured value or, if it is
+     * lower, to the highest populated partition plus one, since meters may be
+     * assigned to partitions by the partition count.
+     *
+     * @param conf the job configuration.
+     * @param job the job being configured.
+     * @throws IOException if the input table cannot be scanned.
+     * @throws IllegalArgumentException if the input table is empty.
+     */
+    private void discoverPartitions(Configuration conf, Job job) throws IOException {
+        String configured = conf.get(EnumAggregationJobParameter.PARTITIONS.getValue());
+
+        if ((!StringUtils.isBlank(configured)) &&
+            (!conf.getBoolean(EnumAggregationJobParameter.PARTITIONS_DISCOVER.getValue(), false))) {
+            return;
+        }
+
+        List<Short> partitions = new ArrayList<Short>();
+
+        TableName tableName = TableName.valueOf(conf.get(EnumAggregationJobParameter.INPUT_TABLE.getValue()));
+
+        try (Connection connection = ConnectionFactory.createConnection(conf); Table table = connection.getTable(tableName)) {
+            int next = 0;
+            while (next <= Short.MAX_VALUE) {
+                Scan scan = new Scan();
+                scan.setStartRow(Bytes.toBytes((short) next));
+                scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+                scan.setCaching(1);
+                scan.setCacheBlocks(false);
+
+                byte[] row;
+                try (ResultScanner scanner = table.getScanner(scan)) {
+                    Result result = scanner.next();
+                    if (result == null) {
+                        break;
+                    }
+                    row = result.getRow();
+                }
+
+                // Keys shorter than the prefix sort before the partition
+                // starting with the same byte
+                if (row.length < Bytes.SIZEOF_SHORT) {
+                    next = ((row[0] & 0xFF) << 8);
+                    continue;
+                }
+
+                // Negative prefixes sort after all valid partitions
+                short partition = Bytes.toShort(row, 0);
+                if (partition < next) {
+                    break;
+                }
+
+                partitions.add(partition);
+                next = partition + 1;
+            }
+        }
+
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No partitions found in input table [%s].", tableName.getNameAsString()));
+        }
+
+        discoveredPartitions = new short[partitions.size()];
+        for (int i = 0; i < discoveredPartitions.length; i++) {
+            discoveredPartitions[i] = partitions.get(i);
+        }
+
+        int count = discoveredPartitions[discoveredPartitions.length - 1] + 1;
+        if (!StringUtils.isBlank(configured)) {
+            count = Math.max(count, Integer.parseInt(configured));
+        }
+
+        conf.setInt(EnumAggregationJobParameter.PARTITIONS.getValue(), count);
+        job.getConfiguration().setInt(EnumAggregationJobParameter.PARTITIONS.getValue(), count);
+
+        System.err.println(String.format("Found [%d] populated partitions %s of [%d] in input table [%s]",
+                                         partitions.size(),
+                                         partitions,
+                                         count,
+                                         tableName.getNameAsString()));
+    }
+
+    /**
+     * Parses the groups file found in the HDFS cache folder. The file is
+     * parsed only if it is required by the group index compilation, the
+     * input table scan filter or the exact interval scan padding.
+     *
+     * @param conf the job configuration.
+     * @return the groups or null if the groups file is not found.
+     * @throws IOException if an I/O error occurs.
+     */
+    private GroupCollection readGroups(Configuration conf) throws IOException {
+        if ((!conf.getBoolean(EnumAggregationJobParameter.GROUP_INDEX_COMPILE.getValue(), true)) &&
+            (!conf.getBoolean(EnumAggregationJobParameter.SCAN_FILTER.getValue(), false)) &&
+            (!conf.getBoolean(EnumAggregationJobParameter.INTERVAL_EXACT.getValue(), false))) {
+            return null;
+        }
+
+        String hdfsCacheDir = conf.get(EnumJobMapReduceParameter.HDFS_CACHE_PATH.getValue());
+        String groupsFilename = conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue());
+
+        if ((StringUtils.isBlank(hdfsCacheDir)) || (StringUtils.isBlank(groupsFilename))) {
+            return null;
+        }
+
+        FileSystem hdfsFileSystem = FileSystem.get(conf);
+
+        Path groupsPath = new Path(hdfsCacheDir, groupsFilename);
+        if (!hdfsFileSystem.exists(groupsPath)) {
+            return null;
+        }
+
+        try {
+            GroupCollection groups = new GroupCollection(GroupSelection.fromList(conf.get(EnumAggregationJobParameter.GROUPS.getValue())));
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(hdfsFileSystem.open(groupsPath), StandardCharsets.UTF_8))) {
+                groups.parse(reader, MessageDigest.getInstance("MD5"));
+            }
+            return groups;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Compiles the groups file found in the HDFS cache folder to a binary
+     * group index and adds the index to the distributed cache. Mappers memory
+     * map the index instead of parsing the groups file. The step is skipped if
+     * the groups file, the users file or the HDFS temporary folder is not set.
+     *
+     * The meter ids of the map output values are assigned once by a
+     * {@link MeterDictionary} and stored in the index. The dictionary is added
+     * to the distributed cache for the reducers, which resolve the ids of the
+     * top and bottom meters to serial numbers.
+     *
+     * If the partition of a meter is derived from its serial number, a
+     * separate index is compiled for every partition.
+     *
+     * @param conf the job configuration.
+     * @param job the job being configured.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void compileGroupIndex(Configuration conf, Job job) throws IOException {
+        if (!conf.getBoolean(EnumAggregationJobParameter.GROUP_INDEX_COMPILE.getValue(), true)) {
+            return;
+        }
+
+        String hdfsTmpDir = conf.get(EnumJobMapReduceParameter.HDFS_TMP_PATH.getValue());
+
+        if ((groups == null) || (StringUtils.isBlank(hdfsTmpDir))) {
+            return;
+        }
+
+        FileSystem hdfsFileSystem = FileSystem.get(conf);
+
+        MeterDictionary meters = readMeters(conf, hdfsFileSystem);
+        if (meters == null) {
+            return;
+        }
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+
+            long timestamp = System.currentTimeMillis();
+
+            String strategy = conf.get(EnumAggregationJobParameter.PARTITION_STRATEGY.getValue(), EnumPartitionStrategy.TIME.name());
+            if (EnumPartitionStrategy.fromString(strategy) == EnumPartitionStrategy.SERIAL) {
+                int partitions = Integer.parseInt(conf.get(EnumAggregationJobParameter.PARTITIONS.getValue()));
+
+                for (short p = 0; p < partitions; p++) {
+                    Path indexPath = new Path(hdfsTmpDir, String.format("groups-%d-%d.idx", timestamp, p));
+                    writeGroupIndex(hdfsFileSystem, indexPath, groups.select(p, partitions), meters, md);
+
+                    job.addCacheFile(new URI(indexPath.toUri().toString() + "#" + GROUP_INDEX_FILENAME + "." + p));
+                }
+            } else {
+                Path indexPath = new Path(hdfsTmpDir, String.format("groups-%d.idx", timestamp));
+                writeGroupIndex(hdfsFileSystem, indexPath, groups, meters, md);
+
+                job.addCacheFile(new URI(indexPath.toUri().toString() + "#" + GROUP_INDEX_FILENAME));
+            }
+
+            Path metersPath = new Path(hdfsTmpDir, String.format("meters-%d.txt", timestamp));
+            writeMeters(hdfsFileSystem, metersPath, meters);
+
+            job.addCacheFile(new URI(metersPath.toUri().toString() + "#" + METER_DICTIONARY_FILENAME));
+
+            job.getConfiguration().set(EnumAggregationJobParameter.FILENAME_GROUP_INDEX.getValue(), GROUP_INDEX_FILENAME);
+            job.getConfiguration().set(EnumAggregationJobParameter.FILENAME_METERS.getValue(), METER_DICTIONARY_FILENAME);
+        } catch (NoSuchAlgorithmException | URISyntaxException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates the meter dictionary from the users file and the groups file
+     * found in the HDFS cache folder, hence the meter ids are equal to the ids
+     * assigned by tasks that parse the cached files.
+     *
+     * @param conf the job configuration.
+     * @param hdfsFileSystem the file system.
+     * @return the dictionary or null if the users file is not found.
+     * @throws IOException if an I/O error occurs.
+     */
+    private MeterDictionary readMeters(Configuration conf, FileSystem hdfsFileSystem) throws IOException {
+        String hdfsCacheDir = conf.get(EnumJobMapReduceParameter.HDFS_CACHE_PATH.getValue());
+        String usersFilename = conf.get(EnumAggregationJobParameter.FILENAME_USERS.getValue());
+        String groupsFilename = conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue());
+
+        if (StringUtils.isBlank(usersFilename)) {
+            return null;
+        }
+
+        Path usersPath = new Path(hdfsCacheDir, usersFilename);
+        if (!hdfsFileSystem.exists(usersPath)) {
+            return null;
+        }
+
+        Path groupsPath = new Path(hdfsCacheDir, groupsFilename);
+
+        try (BufferedReader users = new BufferedReader(new InputStreamReader(hdfsFileSystem.open(usersPath), StandardCharsets.UTF_8));
+             BufferedReader groups = new BufferedReader(new InputStreamReader(hdfsFileSystem.open(groupsPath), StandardCharsets.UTF_8))) {
+            return MeterDictionary.fromReaders(users, groups);
+        }
+    }
+
+    /**
+     * Writes a compiled group index to HDFS. The file is deleted when the
+     * file system is closed.
+     *
+     * @param hdfsFileSystem the file system.
+     * @param indexPath the index path.
+     * @param groups the groups.
+     * @param meters the meter dictionary.
+     * @param md message digest algorithm for hashing group keys.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeGroupIndex(FileSystem hdfsFileSystem, Path indexPath, GroupCollection groups, MeterDictionary meters, MessageDigest md) throws IOException {
+        try (DataOutputStream out = hdfsFileSystem.create(indexPath, true)) {
+            CompiledGroupIndex.write(groups, meters, md, out);
+        }
+        hdfsFileSystem.deleteOnExit(indexPath);
+    }
+
+    /**
+     * Writes a meter dictionary to HDFS. The file is deleted when the file
+     * system is closed.
+     *
+     * @param hdfsFileSystem the file system.
+     * @param metersPath the dictionary path.
+     * @param meters the meter dictionary.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeMeters(FileSystem hdfsFileSystem, Path metersPath, MeterDictionary meters) throws IOException {
+        try (Writer out = new OutputStreamWriter(hdfsFileSystem.create(metersPath, true), StandardCharsets.UTF_8)) {
+            meters.write(out);
+        }
+        hdfsFileSystem.deleteOnExit(metersPath);
+    }
+
 	/**
 	 * Copies jar files from the local path to the remote HDFS path.
 	 *
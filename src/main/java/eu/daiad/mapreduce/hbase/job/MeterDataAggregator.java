@@ -6,7 +6,6 @@ import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapreduce.Counter;
@@ -19,10 +18,13 @@ import org.joda.time.DateTime;
 
 import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
 import eu.daiad.mapreduce.hbase.combiner.MeterAggregatorCombiner;
+import eu.daiad.mapreduce.hbase.input.BalancedMultiTableInputFormat;
+import eu.daiad.mapreduce.hbase.input.PrefetchingMultiTableInputFormat;
 import eu.daiad.mapreduce.hbase.mapper.MeterAggregatorMapper;
-import eu.daiad.mapreduce.hbase.model.DateUtils;
 import eu.daiad.mapreduce.hbase.model.Interval;
 import eu.daiad.mapreduce.hbase.model.MeterDataWritable;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+import eu.daiad.mapreduce.hbase.partitioner.GroupPartitioner;
 import eu.daiad.mapreduce.hbase.reducer.MeterAggregatorReducer;
 
 /**
@@ -55,43 +57,69 @@ public class MeterDataAggregator extends AbstractMeterDataAggregator {
     @Override
     protected void setScans(Configuration conf, Job job) throws IOException {
         String inputTableName = conf.get(EnumAggregationJobParameter.INPUT_TABLE.getValue());
-        String outputTableName = conf.get(EnumAggregationJobParameter.OUTPUT_TABLE.getValue());
+        String outputTableName = getOutputTable(conf);
         String columnFamily = conf.get(EnumAggregationJobParameter.COLUMN_FAMILY.getValue());
 
         // Configure Mapper
         List<Scan> scans = new ArrayList<Scan>();
 
-        short partitions = Short.parseShort(conf.get(EnumAggregationJobParameter.PARTITIONS.getValue()));
+        short[] partitions = getPartitions(conf);
 
         // Compute time interval
-        DateUtils dateUtils = new DateUtils(conf);
-        Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+        Interval<DateTime> dateInterval = getScanDateInterval(job.getConfiguration());
 
 
-        for (short p = 0; p < partitions; p++) {
+        for (short p : partitions) {
             Interval<byte[]> rowKeyInterval = getScanRowKeyInterval(p, dateInterval.getFrom(), dateInterval.getTo());
             Scan scan = new Scan();
 
             scan.setAttribute("scan.attributes.table.name", Bytes.toBytes(inputTableName));
-            scan.setCaching(1000);
-            scan.setCacheBlocks(false);
+            setScanProfile(conf, scan, false);
 
             scan.addFamily(Bytes.toBytes(columnFamily));
 
             scan.setStartRow(rowKeyInterval.getFrom());
             scan.setStopRow(rowKeyInterval.getTo());
 
+            setScanFilter(conf, scan);
+            setSampleFilter(conf, scan);
+            setQualifierFilter(conf, scan, MeterAggregatorMapper.QUALIFIER_SUFFIXES);
+
             scans.add(scan);
         }
 
         // Configure Mapper
         TableMapReduceUtil.initTableMapperJob(scans,
                                               MeterAggregatorMapper.class,
-                                              ImmutableBytesWritable.class,
+                                              RowKeyWritable.class,
                                               MeterDataWritable.class,
                                               job,
                                               false);
 
+        // Run several mapper threads per map task
+        setMapperThreads(conf, job, MeterAggregatorMapper.class);
+
+        // Divide large region splits into time bucket sub-ranges
+        if (conf.getLong(EnumAggregationJobParameter.SPLIT_SIZE.getValue(), 0) > 0) {
+            job.getConfiguration().setInt(EnumAggregationJobParameter.TIME_BUCKET_INTERVAL.getValue(), interval.getValue());
+            job.setInputFormatClass(BalancedMultiTableInputFormat.class);
+        }
+
+        // Read the next scanner batch while the mapper processes the current one
+        if (conf.getBoolean(EnumAggregationJobParameter.SCAN_PREFETCH.getValue(), false)) {
+            job.setInputFormatClass(PrefetchingMultiTableInputFormat.class);
+        }
+
+        // Read the HFiles of an input table snapshot
+        setSnapshotInput(conf, job);
+
+        // Sort the fixed width map output keys by row key and meter without
+        // deserializing them. Reducers group the keys by row key, hence the
+        // values of every meter arrive contiguously; combiners group the keys
+        // by row key and meter.
+        job.setSortComparatorClass(RowKeyWritable.Comparator.class);
+        job.setGroupingComparatorClass(RowKeyWritable.GroupingComparator.class);
+
         // Configure Combiner
         job.setCombinerClass(MeterAggregatorCombiner.class);
 
@@ -105,6 +133,12 @@ public class MeterDataAggregator extends AbstractMeterDataAggregator {
                                                null,
                                                false);
 
+        // All time buckets of a group must be processed by the same reducer
+        // when the coarser granularity levels are derived by the reducer.
+        if (conf.getBoolean(EnumAggregationJobParameter.ROLLUP.getValue(), false)) {
+            job.setPartitionerClass(GroupPartitioner.class);
+        }
+
     }
 
     /**
@@ -131,7 +165,11 @@ public class MeterDataAggregator extends AbstractMeterDataAggregator {
         if (job == null) {
             return -1;
         }
-        job.waitForCompletion(true);
+        try {
+            job.waitForCompletion(true);
+        } finally {
+            deleteSnapshot(getConf());
+        }
 
         Counters counters = job.getCounters();
 
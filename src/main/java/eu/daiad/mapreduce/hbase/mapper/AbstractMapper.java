@@ -1,17 +1,43 @@
 package eu.daiad.mapreduce.hbase.mapper;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableMapper;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+import eu.daiad.mapreduce.hbase.model.CompiledGroupIndex;
 import eu.daiad.mapreduce.hbase.model.EnumGranularity;
+import eu.daiad.mapreduce.hbase.model.EnumPartitionStrategy;
+import eu.daiad.mapreduce.hbase.model.GroupCollection;
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+import eu.daiad.mapreduce.hbase.model.GroupMemberIndex;
+import eu.daiad.mapreduce.hbase.model.GroupSelection;
 import eu.daiad.mapreduce.hbase.model.Interval;
+import eu.daiad.mapreduce.hbase.model.MeterDictionary;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+import eu.daiad.mapreduce.hbase.model.RowTimeBuckets;
+import eu.daiad.mapreduce.hbase.model.TimeBucketCalculator;
 
 public abstract class AbstractMapper<KEYOUT, VALUEOUT> extends TableMapper<KEYOUT, VALUEOUT> {
 
@@ -20,12 +46,101 @@ public abstract class AbstractMapper<KEYOUT, VALUEOUT> extends TableMapper<KEYOU
      */
     protected Interval<DateTime> dateInterval;
 
+    /**
+     * Interval of the buckets to aggregate.
+     */
+    protected Interval<DateTime> bucketInterval;
+
+    /**
+     * Aggregates only the buckets that the bucket interval fully covers.
+     */
+    protected boolean completeBuckets;
+
+    /**
+     * Row time bucket caches per time zone.
+     */
+    protected Map<DateTimeZone, RowTimeBuckets> rowBuckets;
+
+    /**
+     * Granularity levels.
+     */
+    protected static final EnumGranularity[] GRANULARITIES = EnumGranularity.values();
+
+    /**
+     * Bucket values of a single timestamp indexed by granularity.
+     */
+    protected long[] datetimes = new long[GRANULARITIES.length];
+
+    /**
+     * Interval check results of a single timestamp indexed by granularity.
+     */
+    protected boolean[] inInterval = new boolean[GRANULARITIES.length];
+
+    /**
+     * Granularity levels selected for aggregation sorted from the finest to
+     * the coarsest.
+     */
+    protected EnumGranularity[] granularities = GRANULARITIES;
+
+    /**
+     * True if the mapper emits only the finest granularity level and the
+     * coarser levels are derived by the reducer.
+     */
+    protected boolean rollup;
+
+    /**
+     * Granularity level emitted in rollup mode.
+     */
+    protected EnumGranularity rollupGranularity = EnumGranularity.HOUR;
+
+    /**
+     * Reusable map output key bytes. The output row key is followed by the
+     * meter id.
+     */
+    protected byte[] rowKey = new byte[RowKeyWritable.LENGTH];
+
+
+    /**
+     * Counter group of the number of input rows per partition.
+     */
+    protected static final String PARTITION_COUNTER_GROUP = "eu.daiad.mapreduce.hbase.Partitions";
+
+    /**
+     * Number of input rows per partition.
+     */
+    protected long[] partitionRows = new long[0];
+
+    /**
+     * Number of partitions if the partition of a meter is derived from its
+     * serial number; otherwise zero.
+     */
+    protected int serialPartitions;
 
     /**
      * Message digest algorithm for hashing group keys and meter serials.
      */
     protected MessageDigest md;
 
+    /**
+     * Inverted index from meter serial hashes to group memberships.
+     */
+    protected GroupIndex index;
+
+    /**
+     * Sample of the meters to aggregate or null if all meters are aggregated.
+     */
+    protected MeterSample sample;
+
+    /**
+     * Group index shared by the mapper threads of a multithreaded map task.
+     */
+    private static GroupIndex sharedIndex;
+
+    /**
+     * Input split of the shared group index.
+     */
+    private static InputSplit sharedIndexSplit;
+
     /**
      * Checks if a parameter exists and returns its value.
      *
@@ -45,67 +160,376 @@ public abstract class AbstractMapper<KEYOUT, VALUEOUT> extends TableMapper<KEYOU
         return value;
     }
 
-    protected long unixTimestampToLong(long timestamp, DateTimeZone timezone, EnumGranularity granularity) {
-        DateTime date = new DateTime(timestamp, timezone);
-
-        long value = 0;
-
-        switch(granularity) {
-            case HOUR:
-                value = date.getYear() * 1000000 +
-                        date.getMonthOfYear() * 10000 +
-                        date.getDayOfMonth() * 100 +
-                        date.getHourOfDay();
-                break;
-            case DAY:
-                value = date.getYear() * 1000000 +
-                        date.getMonthOfYear() * 10000 +
-                        date.getDayOfMonth() * 100;
-                break;
-            case WEEK:
-                DateTime monday = date.withDayOfWeek(DateTimeConstants.MONDAY);
-
-                value = monday.getYear() * 1000000 +
-                        monday.getMonthOfYear() * 10000 +
-                        monday.getDayOfMonth() * 100;
-                break;
-            case MONTH:
-                value = date.getYear() * 1000000 +
-                        date.getMonthOfYear() * 10000 + 100;
-                break;
-            case YEAR:
-                value = date.getYear() * 1000000 + 10100;
-                break;
-            default:
-                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity .toString()));
+    /**
+     * Initializes the serial hash inverted index. If the job driver has
+     * compiled the group index, the cached index file is memory mapped and
+     * provides the meter ids assigned by the driver. Otherwise, the input files
+     * with users and group members are parsed.
+     *
+     * If the partition of a meter is derived from its serial number, only the
+     * members of the partitions covered by the input split are loaded.
+     *
+     * If the map task runs several mapper threads, the index is loaded once
+     * and shared by all threads.
+     *
+     * @param conf job configuration.
+     * @param split the input split of the task.
+     * @return true if the index has been loaded by this mapper; false if an
+     * index loaded by another thread is reused.
+     * @throws FileNotFoundException if the input file is not found.
+     * @throws IOException if an I/O exception occurs.
+     * @throws NoSuchAlgorithmException if the hashing algorithms is not supported.
+     */
+    protected boolean loadGroups(Configuration conf, InputSplit split) throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+        if (conf.getInt(EnumAggregationJobParameter.MAPPER_THREADS.getValue(), 1) <= 1) {
+            loadIndex(conf, split);
+
+            return true;
         }
 
-        return value;
+        synchronized (AbstractMapper.class) {
+            if (sharedIndexSplit == split) {
+                index = sharedIndex;
+
+                return false;
+            }
+
+            loadIndex(conf, split);
+
+            sharedIndex = index;
+            sharedIndexSplit = split;
+
+            return true;
+        }
     }
 
-    protected byte[] createRowKey(String group, EnumGranularity granularity, long datetime) throws Exception {
-        byte[] groupHash = md.digest(group.getBytes("UTF-8"));
-        byte[] datetimeBytes = Bytes.toBytes(datetime);
+    /**
+     * Initializes the serial hash inverted index of the input split.
+     *
+     * @param conf job configuration.
+     * @param split the input split of the task.
+     * @return the number of unique groups.
+     * @throws FileNotFoundException if the input file is not found.
+     * @throws IOException if an I/O exception occurs.
+     * @throws NoSuchAlgorithmException if the hashing algorithms is not supported.
+     */
+    private int loadIndex(Configuration conf, InputSplit split) throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+        boolean[] partitions = getSplitPartitions(conf, split);
+
+        String indexFilename = conf.get(EnumAggregationJobParameter.FILENAME_GROUP_INDEX.getValue());
+
+        if (!StringUtils.isBlank(indexFilename)) {
+            // The job driver compiles a separate index per partition if the
+            // members are partitioned
+            if (partitions != null) {
+                indexFilename = getPartitionIndexFilename(indexFilename, partitions);
+            }
 
-        byte[] rowKey = new byte[groupHash.length + 1 + datetimeBytes.length];
+            File cachedIndex = (indexFilename == null ? null : Paths.get("./", indexFilename).toFile());
+            if ((cachedIndex != null) && (cachedIndex.exists())) {
+                index = new CompiledGroupIndex(cachedIndex);
 
-        System.arraycopy(groupHash, 0, rowKey, 0, groupHash.length);
-        System.arraycopy(new byte[] { granularity.getValue() }, 0, rowKey, groupHash.length, 1);
-        System.arraycopy(datetimeBytes, 0, rowKey, (groupHash.length + 1), datetimeBytes.length);
+                return index.getGroupCount();
+            }
+        }
 
-        return rowKey;
+        return parseMembers(conf, partitions);
     }
 
-    protected boolean checkInterval(long datetime, DateTimeZone timezone, EnumGranularity granularity) {
-        DateTime localFrom = dateInterval.getFrom().withZoneRetainFields(timezone)
-                                         .plusMonths(1).dayOfMonth().withMinimumValue();
-        DateTime localTo = dateInterval.getTo().withZoneRetainFields(timezone)
-                                       .minusMonths(1).dayOfMonth().withMaximumValue();
+    /**
+     * Returns the name of the compiled index file of a single partition.
+     *
+     * @param indexFilename the name of the compiled index file.
+     * @param partitions the selected partitions indexed by partition.
+     * @return the file name or null if more than one partition is selected.
+     */
+    private String getPartitionIndexFilename(String indexFilename, boolean[] partitions) {
+        int selected = -1;
+        for (int p = 0; p < partitions.length; p++) {
+            if (partitions[p]) {
+                if (selected >= 0) {
+                    return null;
+                }
+                selected = p;
+            }
+        }
+        return (selected < 0 ? null : indexFilename + "." + selected);
+    }
+
+    /**
+     * Returns the partitions covered by the input split if the partition of a
+     * meter is derived from its serial number.
+     *
+     * @param conf job configuration.
+     * @param split the input split.
+     * @return the selected partitions indexed by partition or null if the
+     * members of all partitions are required.
+     */
+    protected boolean[] getSplitPartitions(Configuration conf, InputSplit split) {
+        String strategy = conf.get(EnumAggregationJobParameter.PARTITION_STRATEGY.getValue(), EnumPartitionStrategy.TIME.name());
+        if ((EnumPartitionStrategy.fromString(strategy) != EnumPartitionStrategy.SERIAL) || (!(split instanceof TableSplit))) {
+            return null;
+        }
+
+        int count = Integer.parseInt(ensureParameter(conf, EnumAggregationJobParameter.PARTITIONS.getValue()));
 
-        long localFromLong = unixTimestampToLong(localFrom.getMillis(), timezone, granularity);
-        long localToLong = unixTimestampToLong(localTo.getMillis(), timezone, granularity);
+        byte[] startRow = ((TableSplit) split).getStartRow();
+        byte[] endRow = ((TableSplit) split).getEndRow();
 
-        return ((localFromLong <= datetime) && (datetime <= localToLong));
+        int first = 0;
+        if (startRow.length >= Bytes.SIZEOF_SHORT) {
+            first = Bytes.toShort(startRow, 0);
+        }
+
+        int last = count - 1;
+        if (endRow.length >= Bytes.SIZEOF_SHORT) {
+            last = Bytes.toShort(endRow, 0);
+
+            // The end row is exclusive. If it is the first row of a
+            // partition, the partition is not covered.
+            boolean firstRow = true;
+            for (int i = Bytes.SIZEOF_SHORT; i < endRow.length; i++) {
+                if (endRow[i] != 0) {
+                    firstRow = false;
+                    break;
+                }
+            }
+            if (firstRow) {
+                last--;
+            }
+        }
+
+        boolean[] partitions = new boolean[count];
+        for (int p = Math.max(first, 0); p <= Math.min(last, count - 1); p++) {
+            partitions[p] = true;
+        }
+        return partitions;
+    }
+
+    /**
+     * Parses input file with group members, populates an instance of
+     * {@link GroupCollection} and builds the serial hash inverted index. The
+     * meter ids are assigned by a {@link MeterDictionary} created from the
+     * input files with users and group members.
+     *
+     * @param conf job configuration.
+     * @param partitions the selected partitions indexed by partition or null
+     * if the members of all partitions are required.
+     * @return the number of unique groups.
+     * @throws FileNotFoundException if the input file is not found.
+     * @throws IOException if an I/O exception occurs.
+     * @throws NoSuchAlgorithmException if the hashing algorithms is not supported.
+     */
+    protected int parseMembers(Configuration conf, boolean[] partitions) throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+        GroupCollection groups = new GroupCollection(GroupSelection.fromList(conf.get(EnumAggregationJobParameter.GROUPS.getValue())));
+
+        File cachedFile = Paths.get("./", conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue())).toFile();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(cachedFile))) {
+            groups.parse(reader, md, partitions);
+        }
+
+        File usersFile = Paths.get("./", conf.get(EnumAggregationJobParameter.FILENAME_USERS.getValue())).toFile();
+
+        index = new GroupMemberIndex(groups, md, MeterDictionary.fromFiles(usersFile, cachedFile));
+
+        return groups.size();
+    }
+
+    /**
+     * Creates a {@link TimeBucketCalculator} for every time zone used by the
+     * groups. It must be invoked after the groups and the date interval are
+     * initialized.
+     */
+    protected void createTimeBuckets() {
+        rowBuckets = new HashMap<DateTimeZone, RowTimeBuckets>();
+
+        for (DateTimeZone timezone : index.getTimezones()) {
+            if (!rowBuckets.containsKey(timezone)) {
+                TimeBucketCalculator calculator = new TimeBucketCalculator(timezone, dateInterval, bucketInterval, completeBuckets);
+                rowBuckets.put(timezone, new RowTimeBuckets(calculator));
+            }
+        }
+    }
+
+    /**
+     * Checks if the bucket of any granularity level of the current timestamp
+     * is inside the date interval. In rollup mode, a reading is emitted once
+     * for the finest granularity if it contributes to any level.
+     *
+     * @return true if the reading must be aggregated.
+     */
+    protected boolean isInInterval() {
+        for (EnumGranularity granularity : granularities) {
+            if (inInterval[granularity.ordinal()]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Initializes the selected granularity levels and the granularity level
+     * emitted in rollup mode.
+     *
+     * @param conf job configuration.
+     * @throws IllegalArgumentException if no granularity level is selected.
+     */
+    protected void setGranularities(Configuration conf) throws IllegalArgumentException {
+        granularities = EnumGranularity.fromList(conf.get(EnumAggregationJobParameter.GRANULARITIES.getValue()));
+        if (granularities.length == 0) {
+            throw new IllegalArgumentException("At least one granularity level must be selected.");
+        }
+
+        // Coarser levels are derived from the finest selected level, except
+        // for months and years that cannot be derived from weeks.
+        rollupGranularity = granularities[0];
+        if ((rollupGranularity == EnumGranularity.WEEK) && (granularities.length > 1)) {
+            rollupGranularity = EnumGranularity.DAY;
+        }
+    }
+
+    /**
+     * Initializes the number of input rows per partition.
+     *
+     * @param conf job configuration.
+     */
+    protected void setPartitionCounters(Configuration conf) {
+        partitionRows = new long[conf.getInt(EnumAggregationJobParameter.PARTITIONS.getValue(), 0)];
+
+        String strategy = conf.get(EnumAggregationJobParameter.PARTITION_STRATEGY.getValue(), EnumPartitionStrategy.TIME.name());
+        if (EnumPartitionStrategy.fromString(strategy) == EnumPartitionStrategy.SERIAL) {
+            serialPartitions = Integer.parseInt(ensureParameter(conf, EnumAggregationJobParameter.PARTITIONS.getValue()));
+        }
+    }
+
+    /**
+     * Checks that the partition stored in a row key is the partition of its
+     * serial hash if the {@link EnumPartitionStrategy#SERIAL} strategy is
+     * selected. Otherwise, the mapper loads the members of other partitions
+     * and the rows of the meter would be silently rejected.
+     *
+     * @param row the row key.
+     * @throws IOException if the partitions do not match.
+     */
+    protected void checkSerialPartition(ImmutableBytesWritable row) throws IOException {
+        if (serialPartitions == 0) {
+            return;
+        }
+
+        short partition = Bytes.toShort(row.get(), row.getOffset());
+        short expected = EnumPartitionStrategy.getSerialPartition(row.get(), row.getOffset() + 10, serialPartitions);
+        if (partition != expected) {
+            throw new IOException(String.format("Row partition [%d] is not the partition [%d] of its serial hash. " +
+                                                "The input table is not partitioned with the [%s] strategy.",
+                                                partition, expected, EnumPartitionStrategy.SERIAL));
+        }
+    }
+
+    /**
+     * Counts an input row for its partition. Rows outside the configured
+     * partitions are ignored.
+     *
+     * @param row the row key.
+     */
+    protected void countPartitionRow(ImmutableBytesWritable row) {
+        short partition = Bytes.toShort(row.get(), row.getOffset());
+        if ((partition >= 0) && (partition < partitionRows.length)) {
+            partitionRows[partition]++;
+        }
+    }
+
+    /**
+     * Writes the number of input rows of every partition read by the mapper
+     * to the {@link #PARTITION_COUNTER_GROUP} counter group. The counters
+     * record the partition layout of the input table.
+     *
+     * @param context the task context.
+     */
+    protected void writePartitionCounters(TaskAttemptContext context) {
+        for (int p = 0; p < partitionRows.length; p++) {
+            if (partitionRows[p] > 0) {
+                context.getCounter(PARTITION_COUNTER_GROUP, String.format("PARTITION_%d", p)).increment(partitionRows[p]);
+            }
+        }
+    }
+
+    /**
+     * Returns the in-mapper combiner memory budget of a single mapper thread.
+     * The budget of the task is shared equally by all mapper threads.
+     *
+     * @param conf job configuration.
+     * @param defaultMemory the default budget of the task in megabytes.
+     * @return the memory budget in bytes.
+     */
+    protected long getCombinerMemoryBudget(Configuration conf, long defaultMemory) {
+        long memoryBudget = conf.getLong(EnumAggregationJobParameter.IN_MAPPER_COMBINER_MEMORY.getValue(), defaultMemory) * 1024L * 1024L;
+
+        return memoryBudget / Math.max(1, conf.getInt(EnumAggregationJobParameter.MAPPER_THREADS.getValue(), 1));
+    }
+
+    /**
+     * Returns the time range covered by a single input row in seconds.
+     *
+     * @return the row interval.
+     */
+    protected abstract long getRowInterval();
+
+    /**
+     * Returns the UTC timestamp of the first reading an input row may contain.
+     *
+     * @param timeBucket the time bucket stored in the row key.
+     * @return the UTC timestamp in milliseconds.
+     */
+    protected long getRowFrom(long timeBucket) {
+        return ((Long.MAX_VALUE / 1000) - (timeBucket + getRowInterval() - 1)) * 1000L;
+    }
+
+    /**
+     * Returns the UTC timestamp of the last reading an input row may contain.
+     *
+     * @param timeBucket the time bucket stored in the row key.
+     * @return the UTC timestamp in milliseconds.
+     */
+    protected long getRowTo(long timeBucket) {
+        return ((Long.MAX_VALUE / 1000) - timeBucket) * 1000L;
+    }
+
+    /**
+     * Writes the output row key to {@link #rowKey}. The row key is composed of
+     * the MD5 hash of the group key, the granularity and the bucket value.
+     *
+     * @param groupHash the MD5 hash of the group key.
+     * @param granularity the granularity.
+     * @param datetime the bucket value.
+     */
+    protected void writeRowKey(byte[] groupHash, EnumGranularity granularity, long datetime) {
+        System.arraycopy(groupHash, 0, rowKey, 0, GroupIndex.HASH_LENGTH);
+        rowKey[GroupIndex.HASH_LENGTH] = granularity.getValue();
+        Bytes.putLong(rowKey, GroupIndex.HASH_LENGTH + 1, datetime);
+    }
+
+    /**
+     * Writes the meter id that follows the output row key to {@link #rowKey}.
+     *
+     * @param meterId the meter id.
+     */
+    protected void writeMeterId(int meterId) {
+        Bytes.putInt(rowKey, RowKeyWritable.ROW_KEY_LENGTH, meterId);
+    }
+
+    /**
+     * Returns the total number of bytes allocated by the current thread if the
+     * JVM supports thread allocation accounting.
+     *
+     * @return the allocated bytes or 0 if the measurement is not supported.
+     */
+    protected long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
     }
 
 }
@@ -0,0 +1,170 @@
+package eu.daiad.mapreduce.hbase.mapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+import eu.daiad.mapreduce.hbase.model.MergeableWritable;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+
+/**
+ * Aggregates map output values in memory before they are written to the
+ * context.
+ *
+ * Values are keyed by the map output key and the MD5 hash of the meter serial
+ * number, hence values of the same meter and bucket are merged using
+ * {@link MergeableWritable#merge(MergeableWritable)}. The table is flushed to
+ * the context when the estimated memory footprint exceeds the configured
+ * budget.
+ *
+ * @param <V> the map output value type.
+ */
+public class InMapperCombiner<V extends MergeableWritable<V>> {
+
+    /**
+     * Estimated memory footprint of a single table entry in bytes, including
+     * the hash map entry, the key and the value objects.
+     */
+    private static final long ENTRY_SIZE = 256;
+
+    private final int rowKeyLength;
+
+    private final long maxEntries;
+
+    private final Map<Key, V> values = new HashMap<Key, V>();
+
+    private final Key probe;
+
+    private final RowKeyWritable outputKey = new RowKeyWritable();
+
+    private long merged = 0;
+
+    private long flushes = 0;
+
+    /**
+     * Creates a new table.
+     *
+     * @param rowKeyLength the length of the map output key.
+     * @param memoryBudget the memory budget in bytes.
+     */
+    public InMapperCombiner(int rowKeyLength, long memoryBudget) {
+        this.rowKeyLength = rowKeyLength;
+        this.maxEntries = Math.max(1, memoryBudget / ENTRY_SIZE);
+        this.probe = new Key(new byte[rowKeyLength + GroupIndex.HASH_LENGTH]);
+    }
+
+    /**
+     * Adds a value to the table. If the table already contains a value for
+     * the same row key and serial hash, the two values are merged; otherwise
+     * a copy of the value is stored.
+     *
+     * @param rowKey the map output key.
+     * @param serialHash the array that contains the serial hash.
+     * @param serialHashOffset the offset of the serial hash inside {@code serialHash}.
+     * @param value the value. The instance is not retained and can be reused.
+     * @return true if the table has reached the memory budget and must be flushed.
+     * @throws IOException if the values cannot be merged.
+     */
+    public boolean add(byte[] rowKey, byte[] serialHash, int serialHashOffset, V value) throws IOException {
+        System.arraycopy(rowKey, 0, probe.bytes, 0, rowKeyLength);
+        System.arraycopy(serialHash, serialHashOffset, probe.bytes, rowKeyLength, GroupIndex.HASH_LENGTH);
+        probe.rehash();
+
+        V current = values.get(probe);
+        if (current == null) {
+            values.put(probe.copy(), value.copy());
+        } else {
+            current.merge(value);
+            merged++;
+        }
+
+        return (values.size() >= maxEntries);
+    }
+
+    /**
+     * Writes all values to the context and clears the table.
+     *
+     * @param context the task context.
+     * @return the number of records written.
+     * @throws IOException if an I/O error occurs.
+     * @throws InterruptedException if the task is interrupted.
+     */
+    public long flush(TaskInputOutputContext<?, ?, RowKeyWritable, V> context) throws IOException, InterruptedException {
+        long count = values.size();
+        if (count == 0) {
+            return 0;
+        }
+
+        for (Map.Entry<Key, V> entry : values.entrySet()) {
+            outputKey.set(entry.getKey().bytes, 0);
+            context.write(outputKey, entry.getValue());
+        }
+        values.clear();
+        flushes++;
+
+        return count;
+    }
+
+    /**
+     * Returns the number of values merged into existing table entries.
+     *
+     * @return the number of merged values.
+     */
+    public long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Returns the number of times the table has been flushed.
+     *
+     * @return the number of flushes.
+     */
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Hash table key composed of the map output key and the serial hash.
+     */
+    private static class Key {
+
+        private final byte[] bytes;
+
+        private int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            rehash();
+        }
+
+        void rehash() {
+            hash = Arrays.hashCode(bytes);
+        }
+
+        Key copy() {
+            return new Key(bytes.clone());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return ((hash == other.hash) && (Arrays.equals(bytes, other.bytes)));
+        }
+    }
+
+}
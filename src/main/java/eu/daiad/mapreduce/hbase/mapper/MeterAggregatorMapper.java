@@ -1,40 +1,30 @@
 package eu.daiad.mapreduce.hbase.mapper;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.joda.time.DateTimeZone;
 
 import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
 import eu.daiad.mapreduce.hbase.model.DateUtils;
 import eu.daiad.mapreduce.hbase.model.EnumGranularity;
-import eu.daiad.mapreduce.hbase.model.EnumGroupType;
-import eu.daiad.mapreduce.hbase.model.Group;
-import eu.daiad.mapreduce.hbase.model.GroupCollection;
-import eu.daiad.mapreduce.hbase.model.MeterData;
 import eu.daiad.mapreduce.hbase.model.MeterDataWritable;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+import eu.daiad.mapreduce.hbase.model.RowTimeBuckets;
 
 /**
  * Mapper for smart water meter data aggregation job.
  */
-public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable, MeterDataWritable> {
+public class MeterAggregatorMapper extends AbstractMapper<RowKeyWritable, MeterDataWritable> {
 
     /**
      * Job counters.
@@ -44,6 +34,15 @@ public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable
          * Number of rows in the input table.
          */
         MAPPER_INPUT_ROWS,
+        /**
+         * Number of input rows skipped because the meter is not a member of
+         * any group.
+         */
+        MAPPER_REJECTED_ROWS,
+        /**
+         * Number of input rows skipped because the meter is not sampled.
+         */
+        MAPPER_UNSAMPLED_ROWS,
         /**
          * Number of SWM readings in all input table rows.
          */
@@ -55,59 +54,103 @@ public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable
         /**
          * Number of groups.
          */
-        MAPPER_GROUPS;
+        MAPPER_GROUPS,
+        /**
+         * Number of group memberships loaded by the mappers.
+         */
+        MAPPER_GROUP_MEMBERSHIPS,
+        /**
+         * Number of bytes allocated by the map method.
+         */
+        MAPPER_ALLOCATED_BYTES,
+        /**
+         * Number of values merged by the in-mapper combiner.
+         */
+        MAPPER_COMBINED_VALUES,
+        /**
+         * Number of times the in-mapper combiner has been flushed.
+         */
+        MAPPER_COMBINER_FLUSHES;
     }
 
+    /**
+     * Default in-mapper combiner memory budget in megabytes.
+     */
+    private static final long DEFAULT_IN_MAPPER_COMBINER_MEMORY = 64;
+
+    /**
+     * Time range covered by a single input row in seconds.
+     */
+    private static final long ROW_INTERVAL = 3600;
+
+    /**
+     * Column qualifier of the meter volume.
+     */
+    private static final byte QUALIFIER_VOLUME = 'v';
+
+    /**
+     * Column qualifier of the volume difference since the previous reading.
+     */
+    private static final byte QUALIFIER_DIFFERENCE = 'd';
+
+    /**
+     * Suffixes of the column qualifiers decoded by the mapper, composed of the
+     * column name length and the column name.
+     */
+    public static final byte[][] QUALIFIER_SUFFIXES = { { 1, QUALIFIER_VOLUME }, { 1, QUALIFIER_DIFFERENCE } };
+
     /**
      * Column family bytes.
      */
     private byte[] columnFamily;
 
     /**
-     * All groups that require aggregation
+     * Reading time stamps of the current row.
      */
-    private GroupCollection groups;
+    private long[] timestamps = new long[64];
 
     /**
-     * Parses input file with group members and populates an instance of {@link GroupCollection}.
-     *
-     * @param conf job configuration.
-     * @return the number of unique groups.
-     * @throws FileNotFoundException if the input file is not found.
-     * @throws IOException if an I/O exception occurs.
-     * @throws NoSuchAlgorithmException if the hashing algorithms is not supported.
+     * Reading volumes of the current row.
      */
-    private int parseMembers(Configuration conf) throws FileNotFoundException, IOException, NoSuchAlgorithmException {
-        groups = new GroupCollection();
+    private float[] volumes = new float[64];
 
-        File cachedFile = Paths.get("./", conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue())).toFile();
+    /**
+     * Reading volume differences of the current row.
+     */
+    private float[] differences = new float[64];
+
+    /**
+     * Reusable output key.
+     */
+    private RowKeyWritable outputKey = new RowKeyWritable(rowKey);
+
+    /**
+     * Reusable output value.
+     */
+    private MeterDataWritable outputValue = new MeterDataWritable();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(cachedFile))) {
-            String line;
+    /**
+     * In-mapper combiner or null if in-mapper aggregation is disabled.
+     */
+    private InMapperCombiner<MeterDataWritable> combiner;
 
-            line = reader.readLine();
-            while (line != null) {
-                String[] tokens = StringUtils.splitByWholeSeparatorPreserveAllTokens(line, ";", 0);
+    private Counter inputRowsCounter;
 
-                groups.add(EnumGroupType.fromString(tokens[0]),
-                           tokens[1],
-                           tokens[2],
-                           tokens[3],
-                           md.digest(tokens[3].getBytes("UTF-8")),
-                           DateTimeZone.forID(tokens[4]));
+    private Counter rejectedRowsCounter;
 
-                line = reader.readLine();
-            }
-        }
+    private Counter unsampledRowsCounter;
 
-        return groups.size();
-    }
+    private Counter inputDataPointsCounter;
+
+    private Counter outputRowsCounter;
+
+    private Counter allocatedBytesCounter;
 
     /**
      * Called once at the beginning of the task.
      */
     @Override
-    protected void setup(Mapper<ImmutableBytesWritable, Result, ImmutableBytesWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
+    protected void setup(Mapper<ImmutableBytesWritable, Result, RowKeyWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
         super.setup(context);
 
         Configuration conf = context.getConfiguration();
@@ -117,9 +160,11 @@ public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable
         try {
             md = MessageDigest.getInstance("MD5");
 
-            parseMembers(conf);
-
-            context.getCounter(Counters.MAPPER_GROUPS).increment(groups.size());
+            // The index of a multithreaded task is counted once
+            if (loadGroups(conf, context.getInputSplit())) {
+                context.getCounter(Counters.MAPPER_GROUPS).increment(index.getGroupCount());
+                context.getCounter(Counters.MAPPER_GROUP_MEMBERSHIPS).increment(index.size());
+            }
         } catch (NoSuchAlgorithmException e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -127,6 +172,42 @@ public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable
         // Compute time interval
         DateUtils dateUtils = new DateUtils(conf);
         dateInterval = dateUtils.getDateInterval();
+        bucketInterval = dateUtils.getBucketInterval();
+        completeBuckets = dateUtils.isExact();
+
+        createTimeBuckets();
+
+        rollup = conf.getBoolean(EnumAggregationJobParameter.ROLLUP.getValue(), false);
+
+        setGranularities(conf);
+
+        setPartitionCounters(conf);
+
+        sample = MeterSample.fromConfiguration(conf);
+
+        inputRowsCounter = context.getCounter(Counters.MAPPER_INPUT_ROWS);
+        rejectedRowsCounter = context.getCounter(Counters.MAPPER_REJECTED_ROWS);
+        unsampledRowsCounter = context.getCounter(Counters.MAPPER_UNSAMPLED_ROWS);
+        inputDataPointsCounter = context.getCounter(Counters.MAPPER_INPUT_DATA_POINTS);
+        outputRowsCounter = context.getCounter(Counters.MAPPER_OUTPUT_ROWS);
+
+        if (conf.getBoolean(EnumAggregationJobParameter.ALLOCATION_COUNTER.getValue(), false)) {
+            allocatedBytesCounter = context.getCounter(Counters.MAPPER_ALLOCATED_BYTES);
+        }
+
+        if (conf.getBoolean(EnumAggregationJobParameter.IN_MAPPER_COMBINER.getValue(), false)) {
+            long memoryBudget = getCombinerMemoryBudget(conf, DEFAULT_IN_MAPPER_COMBINER_MEMORY);
+
+            combiner = new InMapperCombiner<MeterDataWritable>(RowKeyWritable.LENGTH, memoryBudget);
+        }
+    }
+
+    /**
+     * Returns the time range covered by a single input row in seconds.
+     */
+    @Override
+    protected long getRowInterval() {
+        return ROW_INTERVAL;
     }
 
     /**
@@ -134,124 +215,226 @@ public class MeterAggregatorMapper extends AbstractMapper<ImmutableBytesWritable
      */
     @Override
     public void map(ImmutableBytesWritable row, Result values, Context context) throws IOException {
+        long allocatedBytes = (allocatedBytesCounter == null ? 0 : getAllocatedBytes());
+
+        inputRowsCounter.increment(1);
+        countPartitionRow(row);
+        checkSerialPartition(row);
+
+        // All readings of a row belong to the same SWM, hence skip the row
+        // before decoding any cell if the serial is not sampled or not a
+        // member of a group
+        if ((sample != null) && (!sample.contains(row.get(), row.getOffset() + 10))) {
+            unsampledRowsCounter.increment(1);
+            return;
+        }
+
+        int slot = index.find(row.get(), row.getOffset() + 10);
+        if (slot < 0) {
+            rejectedRowsCounter.increment(1);
+            return;
+        }
 
         // Extract data points
-        List<MeterData> data = getMeterData(row, values, context);
+        int count = getMeterData(row, values);
 
         // Create key/value pairs
-        createKeyValues(data, context);
+        createKeyValues(row, slot, count, context);
+
+        if (allocatedBytesCounter != null) {
+            allocatedBytesCounter.increment(getAllocatedBytes() - allocatedBytes);
+        }
     }
 
     /**
      * Called once at the end of the task.
      */
     @Override
-    protected void cleanup(Mapper<ImmutableBytesWritable, Result, ImmutableBytesWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
+    protected void cleanup(Mapper<ImmutableBytesWritable, Result, RowKeyWritable, MeterDataWritable>.Context context) throws IOException, InterruptedException {
+        if (combiner != null) {
+            outputRowsCounter.increment(combiner.flush(context));
+
+            context.getCounter(Counters.MAPPER_COMBINED_VALUES).increment(combiner.getMerged());
+            context.getCounter(Counters.MAPPER_COMBINER_FLUSHES).increment(combiner.getFlushes());
+        }
+
+        writePartitionCounters(context);
+
         super.cleanup(context);
     }
 
     /**
-     * Extracts meter data points from a single HBASE row.
+     * Extracts meter data points from a single HBASE row. The cells are
+     * accessed in place and the readings are stored in the reusable
+     * {@code timestamps}, {@code volumes} and {@code differences} arrays.
      *
      * @param row the row key.
      * @param values HBASE row values.
-     * @param context the context passed to the {@link Mapper} implementation.
-     * @return a collection of {@link MeterData} objects.
+     * @return the number of readings.
      */
-    private List<MeterData> getMeterData(ImmutableBytesWritable row, Result values, Context context) {
-        // Meter data loaded from a single HBASE row
-        List<MeterData> data = new ArrayList<MeterData>();
-
-        // Get key values for the column family
-        NavigableMap<byte[], byte[]> columnFamilyMap = values.getFamilyMap(columnFamily);
+    private int getMeterData(ImmutableBytesWritable row, Result values) {
+        // Get time stamp
+        long timeBucket = Bytes.toLong(row.get(), row.getOffset() + 2);
 
-        // Get time stamp and meter serial number hash bytes
-        byte[] timeBucketBytes = Arrays.copyOfRange(values.getRow(), 2, 10);
-        byte[] serialHashBytes = Arrays.copyOfRange(values.getRow(), 10, 26);
+        boolean hasVolume = false, hasDifference = false;
+        float volume = 0, difference = 0;
+        int count = 0;
 
-        long timeBucket = Bytes.toLong(timeBucketBytes);
-
-        Float volume = null, difference = null;
-        long timestamp = 0;
+        for (Cell cell : values.rawCells()) {
+            if (!CellUtil.matchingFamily(cell, columnFamily)) {
+                continue;
+            }
 
-        for (Entry<byte[], byte[]> entry : columnFamilyMap.entrySet()) {
-            // Extract time stamp offset and compute actual time stamp
-            short offset = Bytes.toShort(Arrays.copyOfRange(entry.getKey(), 0, 2));
-            timestamp = ((Long.MAX_VALUE / 1000) - (timeBucket + offset)) * 1000L;
+            byte[] qualifier = cell.getQualifierArray();
+            int qualifierOffset = cell.getQualifierOffset();
 
-            // Extract column qualifier bytes
-            int length = Arrays.copyOfRange(entry.getKey(), 2, 3)[0];
-            byte[] columnQualifierBytes = Arrays.copyOfRange(entry.getKey(), 3, 3 + length);
+            // Column qualifier is the time stamp offset followed by the
+            // length and the bytes of the column name
+            if (qualifier[qualifierOffset + 2] != 1) {
+                continue;
+            }
 
-            if (Bytes.toString(columnQualifierBytes).equals("v")) {
-                volume = Bytes.toFloat(entry.getValue());
+            byte name = qualifier[qualifierOffset + 3];
+            if (name == QUALIFIER_VOLUME) {
+                volume = Bytes.toFloat(cell.getValueArray(), cell.getValueOffset());
+                hasVolume = true;
             }
-            if (Bytes.toString(columnQualifierBytes).equals("d")) {
-                difference = Bytes.toFloat(entry.getValue());
+            if (name == QUALIFIER_DIFFERENCE) {
+                difference = Bytes.toFloat(cell.getValueArray(), cell.getValueOffset());
+                hasDifference = true;
             }
 
-            if ((volume != null) && (difference != null)) {
-                data.add(new MeterData(timestamp, serialHashBytes, volume, difference));
+            if ((hasVolume) && (hasDifference)) {
+                if (count == timestamps.length) {
+                    grow();
+                }
 
-                volume = null;
-                difference = null;
+                // Extract time stamp offset and compute actual time stamp
+                short offset = Bytes.toShort(qualifier, qualifierOffset);
+
+                timestamps[count] = ((Long.MAX_VALUE / 1000) - (timeBucket + offset)) * 1000L;
+                volumes[count] = volume;
+                differences[count] = difference;
+                count++;
+
+                hasVolume = false;
+                hasDifference = false;
             }
         }
 
         // Update counters
-        context.getCounter(Counters.MAPPER_INPUT_ROWS).increment(1);
-        context.getCounter(Counters.MAPPER_INPUT_DATA_POINTS).increment(data.size());
+        inputDataPointsCounter.increment(count);
+
+        return count;
+    }
+
+    /**
+     * Doubles the capacity of the reading arrays.
+     */
+    private void grow() {
+        int capacity = timestamps.length * 2;
 
-        return data;
+        long[] timestamps = new long[capacity];
+        float[] volumes = new float[capacity];
+        float[] differences = new float[capacity];
+
+        System.arraycopy(this.timestamps, 0, timestamps, 0, this.timestamps.length);
+        System.arraycopy(this.volumes, 0, volumes, 0, this.volumes.length);
+        System.arraycopy(this.differences, 0, differences, 0, this.differences.length);
+
+        this.timestamps = timestamps;
+        this.volumes = volumes;
+        this.differences = differences;
     }
 
     /**
      * Creates new key/value pairs for inserting into HBASE output table.
      *
-     * @param data Meter data.
+     * @param row the row key.
+     * @param slot the group index slot of the row serial.
+     * @param count the number of readings of the row.
      * @param context the context passed to the {@link Mapper} implementation.
      */
-    private void createKeyValues(List<MeterData> data, Context context) throws IOException {
-        byte[] rowKey;
-
-        // For every SWM reading ...
-        for (MeterData item : data) {
-            // scan all groups ...
-            for (Group group : groups.getValues()) {
-                // and if a serial contributes to the total values ...
-                int index = group.indexOf(item.getSerialHash());
-                if (index > -1) {
-                    // then for every granularity level create a key/value
-                    for (EnumGranularity granularity : EnumGranularity.class.getEnumConstants()) {
-                        long datetime = unixTimestampToLong(item.getUtcTimestamp(), group.getTimezone(), granularity);
-
-                        if (checkInterval(datetime, group.getTimezone(), granularity)) {
-                            // Construct key
-                            try {
-                                rowKey = createRowKey(group.getKey(), granularity, datetime);
-                            } catch (Exception e) {
-                                throw new IOException(e);
-                            }
-
-                            ImmutableBytesWritable key = new ImmutableBytesWritable(rowKey, 0, rowKey.length);
-
-                            // Add key/value to the context
-                            try {
-                                context.write(key, new MeterDataWritable(datetime,
-                                                                         group.getSerial(index),
-                                                                         item.getSerialHash(),
-                                                                         item.getVolume(),
-                                                                         item.getDifference()));
-
-                                context.getCounter(Counters.MAPPER_OUTPUT_ROWS).increment(1);
-                            } catch (InterruptedException e) {
-                                throw new IOException(e);
-                            }
-                        }
+    private void createKeyValues(ImmutableBytesWritable row, int slot, int count, Context context) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        byte[] rowBytes = row.get();
+        int serialHashOffset = row.getOffset() + 10;
+
+        long timeBucket = Bytes.toLong(rowBytes, row.getOffset() + 2);
+        long rowFrom = getRowFrom(timeBucket);
+        long rowTo = getRowTo(timeBucket);
+
+        int meterId = index.getMeterId(slot);
+
+        // All keys of the row refer to the same meter
+        writeMeterId(meterId);
+
+        for (int posting = index.getFirstPosting(slot), last = index.getLastPosting(slot); posting < last; posting++) {
+
+            // Bucket values are computed once per row and time zone
+            RowTimeBuckets buckets = rowBuckets.get(index.getTimezone(posting));
+            buckets.prepare(rowFrom, rowTo);
+
+            // For every SWM reading ...
+            for (int i = 0; i < count; i++) {
+                buckets.toLongs(timestamps[i], datetimes, inInterval);
+
+                // In rollup mode, emit only the finest granularity level.
+                // The reducer derives the coarser levels.
+                if (rollup) {
+                    if (isInInterval()) {
+                        long datetime = datetimes[rollupGranularity.ordinal()];
+
+                        writeRowKey(index.getRowKeyPrefix(posting), rollupGranularity, datetime);
+
+                        outputValue.set(meterId, volumes[i], differences[i]);
+
+                        write(rowBytes, serialHashOffset, context);
+                    }
+                    continue;
+                }
+
+                // for every selected granularity level create a key/value
+                for (EnumGranularity granularity : granularities) {
+                    if (inInterval[granularity.ordinal()]) {
+                        long datetime = datetimes[granularity.ordinal()];
+
+                        // Construct key
+                        writeRowKey(index.getRowKeyPrefix(posting), granularity, datetime);
+
+                        outputValue.set(meterId, volumes[i], differences[i]);
+
+                        write(rowBytes, serialHashOffset, context);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Writes the current output key/value either to the in-mapper combiner or
+     * directly to the context.
+     *
+     * @param rowBytes the input row key bytes.
+     * @param serialHashOffset the offset of the serial hash inside {@code rowBytes}.
+     * @param context the context passed to the {@link Mapper} implementation.
+     */
+    private void write(byte[] rowBytes, int serialHashOffset, Context context) throws IOException {
+        try {
+            if (combiner == null) {
+                // Key and value are serialized immediately and can be reused
+                context.write(outputKey, outputValue);
+
+                outputRowsCounter.increment(1);
+            } else if (combiner.add(rowKey, rowBytes, serialHashOffset, outputValue)) {
+                outputRowsCounter.increment(combiner.flush(context));
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
 }
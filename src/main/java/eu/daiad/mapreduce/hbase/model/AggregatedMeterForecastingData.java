@@ -2,59 +2,187 @@ package eu.daiad.mapreduce.hbase.model;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-
-import org.apache.commons.lang.ArrayUtils;
-
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Aggregates the partial aggregates of the meters of a single output row.
+ *
+ * If the partial aggregates arrive sorted by meter, the partial aggregates of
+ * a meter are merged as they arrive and the meter is ranked when the first
+ * partial aggregate of the next meter arrives, hence only the current meter
+ * and the top-k and bottom-k meters are retained. Otherwise, the partial
+ * aggregates are merged in a table indexed by meter id and the meters are
+ * ranked when the aggregate is first read.
+ *
+ * Meters are ranked by difference and meters with equal differences by
+ * meter id.
+ */
 public class AggregatedMeterForecastingData {
 
-    private boolean isSorted = false;
+    /**
+     * Orders meters by difference and meter id.
+     */
+    private static final Comparator<MeterForecastingDataWritable> RANKING = new Comparator<MeterForecastingDataWritable>() {
+        @Override
+        public int compare(MeterForecastingDataWritable w1, MeterForecastingDataWritable w2) {
+            if (w1.getDifference() < w2.getDifference()) {
+                return -1;
+            } else if (w1.getDifference() > w2.getDifference()) {
+                return 1;
+            }
+            return (w1.getMeterId() < w2.getMeterId() ? -1 : (w1.getMeterId() == w2.getMeterId() ? 0 : 1));
+        }
+    };
 
     private byte[] rowKey;
 
     private int limit;
 
-    private float sum;
+    private boolean sorted;
+
+    private boolean ranked = false;
+
+    /**
+     * Sum of the differences. Accumulated in double precision so that the
+     * result does not depend on the order in which partial aggregates arrive.
+     */
+    private double sum;
+
+    private double squaredSum;
+
+    private int count;
+
+    private float min;
+
+    private float max;
+
+    /**
+     * Partial aggregate of the current meter if the input is sorted by meter.
+     */
+    private MeterForecastingDataWritable current;
+
+    /**
+     * Partial aggregates indexed by meter id if the input is not sorted by
+     * meter.
+     */
+    private Map<Integer, MeterForecastingDataWritable> meters;
 
-    private List<byte[]> keys = new ArrayList<byte[]>();
+    /**
+     * The top-k meters with the smallest meter at the head.
+     */
+    private PriorityQueue<MeterForecastingDataWritable> top;
 
-    private List<MeterForecastingDataWritable> values = new ArrayList<MeterForecastingDataWritable>();
+    /**
+     * The bottom-k meters with the largest meter at the head.
+     */
+    private PriorityQueue<MeterForecastingDataWritable> bottom;
 
-    public AggregatedMeterForecastingData(byte[] rowKey, int limit) {
+    /**
+     * Creates a new aggregate.
+     *
+     * @param rowKey the output row key.
+     * @param limit the number of top-k and bottom-k meters.
+     * @param sorted true if the partial aggregates of every meter arrive
+     * contiguously.
+     */
+    public AggregatedMeterForecastingData(byte[] rowKey, int limit, boolean sorted) {
         this.rowKey = rowKey;
         this.limit = limit;
+        this.sorted = sorted;
+
+        if (!sorted) {
+            meters = new HashMap<Integer, MeterForecastingDataWritable>();
+        }
+        top = new PriorityQueue<MeterForecastingDataWritable>(Math.max(1, limit), RANKING);
+        bottom = new PriorityQueue<MeterForecastingDataWritable>(Math.max(1, limit), Collections.reverseOrder(RANKING));
     }
 
     public void add(MeterForecastingDataWritable value) throws IOException {
-        int index = inArray(keys, value.getSerialHash());
-        if (index < 0) {
-            keys.add(ArrayUtils.clone(value.getSerialHash()));
-            values.add(new MeterForecastingDataWritable(value));
+        if (ranked) {
+            throw new IllegalStateException("Aggregate has already been read.");
+        }
 
-            isSorted = false;
+        if (sorted) {
+            if ((current != null) && (current.getMeterId() == value.getMeterId())) {
+                current.merge(value);
+            } else {
+                if (current != null) {
+                    rank(current);
+                }
+                current = value.copy();
+            }
         } else {
-            values.get(index).merge(value);
+            MeterForecastingDataWritable meter = meters.get(value.getMeterId());
+            if (meter == null) {
+                meters.put(value.getMeterId(), value.copy());
+            } else {
+                meter.merge(value);
+            }
         }
         sum += value.getDifference();
     }
 
-    private void sortRanking() {
-        Collections.sort(values, new Comparator<MeterForecastingDataWritable>() {
-            @Override
-            public int compare(MeterForecastingDataWritable w1, MeterForecastingDataWritable w2) {
-                if (w1.getDifference() < w2.getDifference()) {
-                    return -1;
-                } else if (w1.getDifference() > w2.getDifference()) {
-                    return 1;
-                }
-                return 0;
+    /**
+     * Ranks the meters that have not been ranked yet.
+     */
+    private void rankAll() {
+        if (ranked) {
+            return;
+        }
+
+        if (sorted) {
+            if (current != null) {
+                rank(current);
+                current = null;
             }
-        });
+        } else {
+            for (MeterForecastingDataWritable meter : meters.values()) {
+                rank(meter);
+            }
+            meters = null;
+        }
 
-        isSorted = true;
+        ranked = true;
+    }
+
+    /**
+     * Adds the complete partial aggregate of a meter to the statistics and
+     * the top-k and bottom-k meters.
+     *
+     * @param meter the partial aggregate of the meter.
+     */
+    private void rank(MeterForecastingDataWritable meter) {
+        float difference = meter.getDifference();
+
+        if ((count == 0) || (difference < min)) {
+            min = difference;
+        }
+        if ((count == 0) || (difference > max)) {
+            max = difference;
+        }
+        squaredSum += (double) difference * difference;
+        count++;
+
+        if (limit <= 0) {
+            return;
+        }
+        if (top.size() < limit) {
+            top.add(meter);
+        } else if (RANKING.compare(meter, top.peek()) > 0) {
+            top.poll();
+            top.add(meter);
+        }
+        if (bottom.size() < limit) {
+            bottom.add(meter);
+        } else if (RANKING.compare(meter, bottom.peek()) < 0) {
+            bottom.poll();
+            bottom.add(meter);
+        }
     }
 
     public byte[] getRowKey() {
@@ -62,73 +190,61 @@ public class AggregatedMeterForecastingData {
     }
 
     public float getSum() {
-        return sum;
+        return (float) sum;
     }
 
     public float getMin() {
-        if (!isSorted) {
-            sortRanking();
-        }
-        return values.get(0).getDifference();
+        rankAll();
+        return min;
     }
 
     public float getMax() {
-        if (!isSorted) {
-            sortRanking();
-        }
-        return values.get(values.size() - 1).getDifference();
+        rankAll();
+        return max;
     }
 
     public float getAverage() {
         if (getCount() > 0) {
-            return (sum / getCount());
+            return (getSum() / getCount());
         }
         return 0;
     }
 
     public int getCount() {
-        return keys.size();
+        rankAll();
+        return count;
+    }
+
+    /**
+     * Returns the sum of the squared differences of all meters.
+     *
+     * @return the sum of squares.
+     */
+    public double getSquaredSum() {
+        rankAll();
+        return squaredSum;
     }
 
     public List<MeterForecastingDataWritable> getTop() {
-        if (!isSorted) {
-            sortRanking();
-        }
-        List<MeterForecastingDataWritable> top = new ArrayList<MeterForecastingDataWritable>();
-        for (int i = Math.max(0, values.size() - limit), count = values.size(); i < count; i++) {
-            top.add(values.get(i));
-        }
-        return top;
+        rankAll();
+        return toSortedList(top);
     }
 
     public List<MeterForecastingDataWritable> getBottom() {
-        if (!isSorted) {
-            sortRanking();
-        }
-        List<MeterForecastingDataWritable> bottom = new ArrayList<MeterForecastingDataWritable>();
-        for (int i = 0, count = Math.min(limit, values.size()); i < count; i++) {
-            bottom.add(values.get(i));
-        }
-
-        return bottom;
+        rankAll();
+        return toSortedList(bottom);
     }
 
     /**
-     * Checks if the a byte array is contained in a list of byte arrays.
+     * Returns the meters of a queue in ascending order.
      *
-     * @param array the list of arrays to search.
-     * @param hash the array to find.
-     * @return the index in the array if the item exists or -1.
+     * @param queue the queue.
+     * @return the sorted meters.
      */
-    private int inArray(List<byte[]> array, byte[] hash) {
-        int index = 0;
-        for (byte[] entry : array) {
-            if (Arrays.equals(entry, hash)) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
+    private List<MeterForecastingDataWritable> toSortedList(PriorityQueue<MeterForecastingDataWritable> queue) {
+        List<MeterForecastingDataWritable> result = new ArrayList<MeterForecastingDataWritable>(queue);
+        Collections.sort(result, RANKING);
+        return result;
     }
 
 }
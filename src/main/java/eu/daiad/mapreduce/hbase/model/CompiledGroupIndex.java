@@ -0,0 +1,353 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTimeZone;
+
+/**
+ * {@link GroupIndex} stored in a binary file that is memory mapped read-only.
+ *
+ * The file is compiled once by the job driver using
+ * {@link #write(GroupCollection, MeterDictionary, MessageDigest, DataOutputStream)}
+ * and shipped to the tasks using the distributed cache. All tasks on the same
+ * node share the pages of the file and only the group table is loaded into
+ * the heap.
+ *
+ * The file starts with a header followed by the sections below. All numbers
+ * are big-endian.
+ *
+ * <ul>
+ * <li>fan-out table: 257 integers. Entry {@code b} is the index of the first
+ * serial hash with a first byte greater or equal to {@code b}.</li>
+ * <li>serial hashes: 16 bytes per meter sorted in unsigned lexicographic order.
+ * The index of a hash is the slot of the meter.</li>
+ * <li>posting offsets: one integer per slot plus one.</li>
+ * <li>meter ids: one {@link MeterDictionary} id per slot.</li>
+ * <li>postings: one group id per posting.</li>
+ * <li>groups: for every group, the MD5 hash of the group key, the time zone id
+ * and the group type ordinal.</li>
+ * <li>time zones: the ids of all time zones.</li>
+ * </ul>
+ */
+public class CompiledGroupIndex implements GroupIndex {
+
+    private static final int MAGIC = 0x44474958;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_LENGTH = 6 * Bytes.SIZEOF_INT;
+
+    private static final int FANOUT_LENGTH = 257;
+
+    private static final int GROUP_RECORD_LENGTH = HASH_LENGTH + 2 * Bytes.SIZEOF_INT;
+
+    private MappedByteBuffer buffer;
+
+    private int serialCount;
+
+    private int postingCount;
+
+    private int fanoutOffset;
+
+    private int hashOffset;
+
+    private int postingOffsetsOffset;
+
+    private int meterIdsOffset;
+
+    private int postingsOffset;
+
+    private DateTimeZone[] groupTimezones;
+
+    private byte[][] groupRowKeyPrefixes;
+
+    private Set<DateTimeZone> timezones = new LinkedHashSet<DateTimeZone>();
+
+    /**
+     * Memory maps a compiled index file.
+     *
+     * @param file the file.
+     * @throws IOException if the file cannot be mapped or is not a valid index.
+     */
+    public CompiledGroupIndex(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+            throw new IOException(String.format("File [%s] is not a valid group index.", file.toString()));
+        }
+
+        int timezoneCount = buffer.getInt(8);
+        int groupCount = buffer.getInt(12);
+        serialCount = buffer.getInt(16);
+        postingCount = buffer.getInt(20);
+
+        fanoutOffset = HEADER_LENGTH;
+        hashOffset = fanoutOffset + FANOUT_LENGTH * Bytes.SIZEOF_INT;
+        postingOffsetsOffset = hashOffset + serialCount * HASH_LENGTH;
+        meterIdsOffset = postingOffsetsOffset + (serialCount + 1) * Bytes.SIZEOF_INT;
+        postingsOffset = meterIdsOffset + serialCount * Bytes.SIZEOF_INT;
+        int groupsOffset = postingsOffset + postingCount * Bytes.SIZEOF_INT;
+        int timezonesOffset = groupsOffset + groupCount * GROUP_RECORD_LENGTH;
+
+        // Time zones
+        ByteBuffer input = buffer.duplicate();
+        input.position(timezonesOffset);
+
+        DateTimeZone[] zones = new DateTimeZone[timezoneCount];
+        for (int i = 0; i < timezoneCount; i++) {
+            byte[] id = new byte[input.getShort()];
+            input.get(id);
+            zones[i] = DateTimeZone.forID(new String(id, StandardCharsets.UTF_8));
+            timezones.add(zones[i]);
+        }
+
+        // Groups
+        groupTimezones = new DateTimeZone[groupCount];
+        groupRowKeyPrefixes = new byte[groupCount][];
+
+        input.position(groupsOffset);
+        for (int g = 0; g < groupCount; g++) {
+            groupRowKeyPrefixes[g] = new byte[HASH_LENGTH];
+            input.get(groupRowKeyPrefixes[g]);
+            groupTimezones[g] = zones[input.getInt()];
+            input.getInt();
+        }
+    }
+
+    @Override
+    public int find(byte[] bytes, int offset) {
+        long high = Bytes.toLong(bytes, offset) ^ Long.MIN_VALUE;
+        long low = Bytes.toLong(bytes, offset + 8) ^ Long.MIN_VALUE;
+
+        int first = bytes[offset] & 0xFF;
+        int lowSlot = buffer.getInt(fanoutOffset + first * Bytes.SIZEOF_INT);
+        int highSlot = buffer.getInt(fanoutOffset + (first + 1) * Bytes.SIZEOF_INT) - 1;
+
+        while (lowSlot <= highSlot) {
+            int middle = (lowSlot + highSlot) >>> 1;
+            int position = hashOffset + middle * HASH_LENGTH;
+
+            // Compare as unsigned values
+            long middleHigh = buffer.getLong(position) ^ Long.MIN_VALUE;
+            long middleLow = buffer.getLong(position + 8) ^ Long.MIN_VALUE;
+
+            if ((middleHigh < high) || ((middleHigh == high) && (middleLow < low))) {
+                lowSlot = middle + 1;
+            } else if ((middleHigh == high) && (middleLow == low)) {
+                return middle;
+            } else {
+                highSlot = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getFirstPosting(int slot) {
+        return buffer.getInt(postingOffsetsOffset + slot * Bytes.SIZEOF_INT);
+    }
+
+    @Override
+    public int getLastPosting(int slot) {
+        return buffer.getInt(postingOffsetsOffset + (slot + 1) * Bytes.SIZEOF_INT);
+    }
+
+    @Override
+    public int getMeterId(int slot) {
+        return buffer.getInt(meterIdsOffset + slot * Bytes.SIZEOF_INT);
+    }
+
+    @Override
+    public DateTimeZone getTimezone(int posting) {
+        return groupTimezones[getGroupId(posting)];
+    }
+
+    @Override
+    public byte[] getRowKeyPrefix(int posting) {
+        return groupRowKeyPrefixes[getGroupId(posting)];
+    }
+
+    private int getGroupId(int posting) {
+        return buffer.getInt(postingsOffset + posting * Bytes.SIZEOF_INT);
+    }
+
+    @Override
+    public Collection<DateTimeZone> getTimezones() {
+        return timezones;
+    }
+
+    @Override
+    public int getGroupCount() {
+        return groupTimezones.length;
+    }
+
+    @Override
+    public int size() {
+        return postingCount;
+    }
+
+    /**
+     * Returns the number of meters in the index.
+     *
+     * @return the number of meters.
+     */
+    public int getSerialCount() {
+        return serialCount;
+    }
+
+    /**
+     * Compiles a collection of groups to the binary index format.
+     *
+     * @param groups the groups.
+     * @param meters dictionary of the meter ids of the group members.
+     * @param md message digest algorithm for hashing group keys.
+     * @param out the output stream.
+     * @throws IOException if an I/O exception occurs or if a group member is
+     * not found in the dictionary.
+     */
+    public static void write(GroupCollection groups, MeterDictionary meters, MessageDigest md, DataOutputStream out) throws IOException {
+        // Assign time zone and group ids
+        List<DateTimeZone> zones = new ArrayList<DateTimeZone>();
+        Map<DateTimeZone, Integer> zoneIds = new HashMap<DateTimeZone, Integer>();
+        List<Group> groupList = new ArrayList<Group>(groups.getValues());
+
+        for (Group group : groupList) {
+            if (!zoneIds.containsKey(group.getTimezone())) {
+                zoneIds.put(group.getTimezone(), zones.size());
+                zones.add(group.getTimezone());
+            }
+        }
+
+        // Collect the distinct group ids of every serial hash
+        Map<ByteBuffer, Member> members = new HashMap<ByteBuffer, Member>();
+        for (int g = 0; g < groupList.size(); g++) {
+            Group group = groupList.get(g);
+            for (int m = 0, count = group.size(); m < count; m++) {
+                ByteBuffer hash = ByteBuffer.wrap(group.getSerialHash(m));
+                Member member = members.get(hash);
+                if (member == null) {
+                    int meterId = meters.getId(group.getSerial(m));
+                    if (meterId < 0) {
+                        throw new IOException(String.format("Cannot find meter [%s] in the meter dictionary.", group.getSerial(m)));
+                    }
+                    member = new Member(group.getSerialHash(m), meterId);
+                    members.put(hash, member);
+                }
+                if ((member.groups.isEmpty()) || (member.groups.get(member.groups.size() - 1) != g)) {
+                    member.groups.add(g);
+                }
+            }
+        }
+
+        List<Member> sorted = new ArrayList<Member>(members.values());
+        Collections.sort(sorted);
+
+        int postingCount = 0;
+        for (Member member : sorted) {
+            postingCount += member.groups.size();
+        }
+
+        // Header
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(zones.size());
+        out.writeInt(groupList.size());
+        out.writeInt(sorted.size());
+        out.writeInt(postingCount);
+
+        // Fan-out table
+        int[] fanout = new int[FANOUT_LENGTH];
+        for (Member member : sorted) {
+            fanout[(member.hash[0] & 0xFF) + 1]++;
+        }
+        for (int b = 1; b < FANOUT_LENGTH; b++) {
+            fanout[b] += fanout[b - 1];
+        }
+        for (int value : fanout) {
+            out.writeInt(value);
+        }
+
+        // Serial hashes
+        for (Member member : sorted) {
+            out.write(member.hash);
+        }
+
+        // Posting offsets
+        int offset = 0;
+        for (Member member : sorted) {
+            out.writeInt(offset);
+            offset += member.groups.size();
+        }
+        out.writeInt(offset);
+
+        // Meter ids
+        for (Member member : sorted) {
+            out.writeInt(member.meterId);
+        }
+
+        // Postings
+        for (Member member : sorted) {
+            for (Integer g : member.groups) {
+                out.writeInt(g);
+            }
+        }
+
+        // Groups
+        for (Group group : groupList) {
+            out.write(md.digest(group.getKey().getBytes("UTF-8")));
+            out.writeInt(zoneIds.get(group.getTimezone()));
+            out.writeInt(group.getType().ordinal());
+        }
+
+        // Time zones
+        for (DateTimeZone zone : zones) {
+            byte[] id = zone.getID().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(id.length);
+            out.write(id);
+        }
+    }
+
+    /**
+     * Membership of a single meter used while compiling the index.
+     */
+    private static class Member implements Comparable<Member> {
+
+        private final byte[] hash;
+
+        private final int meterId;
+
+        private final List<Integer> groups = new ArrayList<Integer>();
+
+        Member(byte[] hash, int meterId) {
+            this.hash = Arrays.copyOf(hash, HASH_LENGTH);
+            this.meterId = meterId;
+        }
+
+        @Override
+        public int compareTo(Member other) {
+            return Bytes.compareTo(hash, other.hash);
+        }
+    }
+
+}
@@ -3,6 +3,7 @@ package eu.daiad.mapreduce.hbase.model;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
 import org.joda.time.Months;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -17,7 +18,21 @@ public class DateUtils {
         this.conf = conf;
     }
 
+    /**
+     * Returns true if the date interval is not padded by one month on each
+     * side.
+     *
+     * @return true if the exact interval mode is enabled.
+     */
+    public boolean isExact() {
+        return conf.getBoolean(EnumAggregationJobParameter.INTERVAL_EXACT.getValue(), false);
+    }
+
     public Interval<DateTime> getDateInterval() {
+        if (isExact()) {
+            return getRequestedInterval();
+        }
+
         // Compute time interval
         DateTime now = new DateTime();
 
@@ -43,4 +58,124 @@ public class DateUtils {
 
         return new Interval<DateTime>(from, to);
     }
+
+    /**
+     * Returns the interval of the buckets to aggregate. Every granularity
+     * level aggregates the buckets from the bucket that contains the interval
+     * start to the bucket that contains the interval end, in the local time of
+     * every group.
+     *
+     * By default, the first and the last month of the date interval are
+     * excluded since they are loaded only for handling time zone differences.
+     * In exact interval mode, the requested interval is returned and only the
+     * buckets it fully covers are aggregated.
+     *
+     * @return the interval with the local date time fields of its bounds.
+     */
+    public Interval<DateTime> getBucketInterval() {
+        if (isExact()) {
+            return getRequestedInterval();
+        }
+
+        Interval<DateTime> dateInterval = getDateInterval();
+
+        DateTime from = dateInterval.getFrom().plusMonths(1).dayOfMonth().withMinimumValue();
+        DateTime to = dateInterval.getTo().minusMonths(1).dayOfMonth().withMaximumValue();
+
+        return new Interval<DateTime>(from, to);
+    }
+
+    /**
+     * Returns the requested interval rounded down to whole hours. The local
+     * date time fields are stored in UTC date times.
+     *
+     * @return the requested interval.
+     */
+    private Interval<DateTime> getRequestedInterval() {
+        String dateFrom = conf.get(EnumAggregationJobParameter.DATE_FROM.getValue());
+        String dateTo = conf.get(EnumAggregationJobParameter.DATE_TO.getValue());
+
+        if ((StringUtils.isBlank(dateFrom)) || (StringUtils.isBlank(dateTo))) {
+            throw new IllegalArgumentException("Exact interval requires both interval bounds");
+        }
+
+        DateTimeFormatter formatter = DateTimeFormat.forPattern(conf.get(EnumAggregationJobParameter.DATE_FORMAT.getValue(), "dd/MM/yyyy")).withZoneUTC();
+
+        DateTime from = getBucketStart(formatter.parseDateTime(dateFrom), EnumGranularity.HOUR);
+        DateTime to = getBucketStart(formatter.parseDateTime(dateTo), EnumGranularity.HOUR);
+
+        // If the format has no hour field, the interval ends at the last
+        // hour of the end date
+        if (formatter.print(to.plusHours(1)).equals(formatter.print(to))) {
+            to = to.hourOfDay().setCopy(23);
+        }
+
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("Interval end must not precede interval start");
+        }
+
+        return new Interval<DateTime>(from, to);
+    }
+
+    /**
+     * Returns the interval of the buckets of a granularity level that an
+     * interval fully covers. The interval starts at the first covered bucket
+     * and ends at the last hour of the last covered bucket. If no bucket is
+     * fully covered, the returned interval start follows its end.
+     *
+     * @param interval the interval with the local date time fields of its
+     * bounds. The interval end is the start of the last hour.
+     * @param granularity the granularity.
+     * @return the interval with the local date time fields of its bounds.
+     */
+    static Interval<DateTime> getCompleteBucketInterval(Interval<DateTime> interval, EnumGranularity granularity) {
+        DateTime from = getBucketStart(interval.getFrom(), granularity);
+        if (from.isBefore(interval.getFrom())) {
+            from = getNextBucketStart(from, granularity);
+        }
+
+        DateTime last = getBucketStart(interval.getTo(), granularity);
+        DateTime to = getNextBucketStart(last, granularity).minusHours(1);
+        if (to.isAfter(interval.getTo())) {
+            to = last.minusHours(1);
+        }
+
+        return new Interval<DateTime>(from, to);
+    }
+
+    private static DateTime getBucketStart(DateTime datetime, EnumGranularity granularity) {
+        DateTime hour = datetime.minuteOfHour().setCopy(0).secondOfMinute().setCopy(0).millisOfSecond().setCopy(0);
+
+        switch (granularity) {
+            case HOUR:
+                return hour;
+            case DAY:
+                return hour.hourOfDay().setCopy(0);
+            case WEEK:
+                return hour.hourOfDay().setCopy(0).dayOfWeek().setCopy(DateTimeConstants.MONDAY);
+            case MONTH:
+                return hour.hourOfDay().setCopy(0).dayOfMonth().withMinimumValue();
+            case YEAR:
+                return hour.hourOfDay().setCopy(0).dayOfYear().withMinimumValue();
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+    }
+
+    private static DateTime getNextBucketStart(DateTime start, EnumGranularity granularity) {
+        switch (granularity) {
+            case HOUR:
+                return start.plusHours(1);
+            case DAY:
+                return start.plusDays(1);
+            case WEEK:
+                return start.plusWeeks(1);
+            case MONTH:
+                return start.plusMonths(1);
+            case YEAR:
+                return start.plusYears(1);
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+    }
 }
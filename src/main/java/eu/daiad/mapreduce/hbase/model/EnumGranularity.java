@@ -1,5 +1,7 @@
 package eu.daiad.mapreduce.hbase.model;
 
+import org.apache.commons.lang.StringUtils;
+
 /**
  * Levels of granularity
  */
@@ -15,4 +17,54 @@ public enum EnumGranularity {
     public byte getValue() {
         return value;
     }
+
+    public static EnumGranularity fromValue(byte value) {
+        for (EnumGranularity item : EnumGranularity.values()) {
+            if (item.value == value) {
+                return item;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Granularity [%d] is not supported.", value));
+    }
+
+    public static EnumGranularity fromString(String name) {
+        for (EnumGranularity item : EnumGranularity.values()) {
+            if (item.name().equalsIgnoreCase(name)) {
+                return item;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", name));
+    }
+
+    /**
+     * Parses a comma separated list of granularity names.
+     *
+     * @param value the list of names.
+     * @return the granularity levels sorted from the finest to the coarsest.
+     * All levels are returned if {@code value} is blank.
+     */
+    public static EnumGranularity[] fromList(String value) {
+        if (StringUtils.isBlank(value)) {
+            return EnumGranularity.values();
+        }
+
+        boolean[] selected = new boolean[EnumGranularity.values().length];
+        int count = 0;
+        for (String name : StringUtils.split(value, ",")) {
+            EnumGranularity granularity = fromString(name.trim());
+            if (!selected[granularity.ordinal()]) {
+                selected[granularity.ordinal()] = true;
+                count++;
+            }
+        }
+
+        EnumGranularity[] result = new EnumGranularity[count];
+        int index = 0;
+        for (EnumGranularity granularity : EnumGranularity.values()) {
+            if (selected[granularity.ordinal()]) {
+                result[index++] = granularity;
+            }
+        }
+        return result;
+    }
 }
\ No newline at end of file
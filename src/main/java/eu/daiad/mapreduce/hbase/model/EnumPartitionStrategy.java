@@ -0,0 +1,55 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Strategies for assigning the rows of the input table to partitions. The
+ * partition is stored in the first two bytes of the input row key.
+ */
+public enum EnumPartitionStrategy {
+    /**
+     * Partitions are derived from the row time stamp, hence the rows of a
+     * meter are found in every partition.
+     */
+    TIME,
+    /**
+     * Partitions are derived from the MD5 hash of the meter serial number,
+     * hence all rows of a meter are found in a single partition. The partition
+     * is equal to the first four bytes of the hash, interpreted as a big-endian
+     * integer with the sign bit cleared, modulo the number of partitions.
+     */
+    SERIAL;
+
+    /**
+     * Returns the partition of a meter for the {@link #SERIAL} strategy.
+     *
+     * @param serialHash the MD5 hash of the meter serial number.
+     * @param partitions the number of partitions.
+     * @return the partition.
+     */
+    public static short getSerialPartition(byte[] serialHash, int partitions) {
+        return getSerialPartition(serialHash, 0, partitions);
+    }
+
+    /**
+     * Returns the partition of a meter for the {@link #SERIAL} strategy.
+     *
+     * @param buffer the array that contains the MD5 hash of the meter serial
+     * number.
+     * @param offset the offset of the hash inside {@code buffer}.
+     * @param partitions the number of partitions.
+     * @return the partition.
+     */
+    public static short getSerialPartition(byte[] buffer, int offset, int partitions) {
+        return (short) ((Bytes.toInt(buffer, offset) & Integer.MAX_VALUE) % partitions);
+    }
+
+    public static EnumPartitionStrategy fromString(String name) {
+        for (EnumPartitionStrategy item : EnumPartitionStrategy.values()) {
+            if (item.name().equalsIgnoreCase(name)) {
+                return item;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Partition strategy [%s] is not supported.", name));
+    }
+}
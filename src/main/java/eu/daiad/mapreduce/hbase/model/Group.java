@@ -1,7 +1,6 @@
 package eu.daiad.mapreduce.hbase.model;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.joda.time.DateTimeZone;
@@ -29,14 +28,18 @@ public class Group {
         this.serialHash.add(serialHash);
     }
 
-    public int indexOf(byte[] serial) {
-        return inArray(serialHash, serial);
-    }
-
     public String getSerial(int index) {
         return serial.get(index);
     }
 
+    public byte[] getSerialHash(int index) {
+        return serialHash.get(index);
+    }
+
+    public int size() {
+        return serial.size();
+    }
+
     public EnumGroupType getType() {
         return type;
     }
@@ -49,22 +52,4 @@ public class Group {
         return timezone;
     }
 
-    /**
-     * Checks if the a byte array is contained in a list of byte arrays.
-     *
-     * @param array the list of arrays to search.
-     * @param hash the array to find.
-     * @return if the array is contained in the list.
-     */
-    private int inArray(List<byte[]> array, byte[] hash) {
-        int index = 0;
-        for (byte[] entry : array) {
-            if (Arrays.equals(entry, hash)) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
-
 }
@@ -1,15 +1,37 @@
 package eu.daiad.mapreduce.hbase.model;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTimeZone;
 
 public class GroupCollection {
 
     private Map<String, Group> groups = new HashMap<String, Group>();
 
+    /**
+     * Groups to parse or null if all groups are parsed.
+     */
+    private GroupSelection selection;
+
+    public GroupCollection() {
+
+    }
+
+    /**
+     * Creates a collection that parses only the selected groups.
+     *
+     * @param selection the selected groups or null if all groups are parsed.
+     */
+    public GroupCollection(GroupSelection selection) {
+        this.selection = selection;
+    }
+
     public void add(EnumGroupType type, String groupKey, String areaKey, String serial, byte[] serialHash, DateTimeZone timezone) {
         String key = groupKey + areaKey;
 
@@ -21,6 +43,88 @@ public class GroupCollection {
         group.add(serial, serialHash);
     }
 
+    /**
+     * Parses group members from a reader. Every line contains the group type,
+     * the group key, the area key, the meter serial number and the time zone
+     * separated by semicolons.
+     *
+     * @param reader the reader.
+     * @param md message digest algorithm for hashing meter serials.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void parse(BufferedReader reader, MessageDigest md) throws IOException {
+        parse(reader, md, null);
+    }
+
+    /**
+     * Parses the group members of the selected partitions from a reader.
+     * Members of groups that are not selected are skipped. The
+     * partition of every member is computed using the
+     * {@link EnumPartitionStrategy#SERIAL} strategy.
+     *
+     * @param reader the reader.
+     * @param md message digest algorithm for hashing meter serials.
+     * @param partitions the selected partitions indexed by partition or null
+     * if all members must be parsed.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void parse(BufferedReader reader, MessageDigest md, boolean[] partitions) throws IOException {
+        String line;
+
+        line = reader.readLine();
+        while (line != null) {
+            String[] tokens = StringUtils.splitByWholeSeparatorPreserveAllTokens(line, ";", 0);
+
+            EnumGroupType type = EnumGroupType.fromString(tokens[0]);
+            if ((selection != null) && (!selection.matches(type, tokens[1], tokens[2]))) {
+                line = reader.readLine();
+                continue;
+            }
+
+            byte[] serialHash = md.digest(tokens[3].getBytes("UTF-8"));
+
+            if ((partitions == null) || (partitions[EnumPartitionStrategy.getSerialPartition(serialHash, partitions.length)])) {
+                add(type,
+                    tokens[1],
+                    tokens[2],
+                    tokens[3],
+                    serialHash,
+                    DateTimeZone.forID(tokens[4]));
+            }
+
+            line = reader.readLine();
+        }
+    }
+
+    /**
+     * Returns a new collection with the members of a single partition. The
+     * partition of every member is computed using the
+     * {@link EnumPartitionStrategy#SERIAL} strategy. Groups without members
+     * in the partition are omitted.
+     *
+     * @param partition the partition.
+     * @param partitions the number of partitions.
+     * @return the new collection.
+     */
+    public GroupCollection select(short partition, int partitions) {
+        GroupCollection result = new GroupCollection();
+
+        for (Group group : groups.values()) {
+            for (int m = 0, count = group.size(); m < count; m++) {
+                if (EnumPartitionStrategy.getSerialPartition(group.getSerialHash(m), partitions) == partition) {
+                    Group target = result.groups.get(group.getKey());
+                    if (target == null) {
+                        target = new Group(group.getType(), group.getKey(), group.getTimezone());
+                        result.groups.put(group.getKey(), target);
+                    }
+                    target.add(group.getSerial(m), group.getSerialHash(m));
+                }
+            }
+        }
+
+        return result;
+    }
+
     public Collection<Group> getValues() {
         return groups.values();
     }
@@ -0,0 +1,95 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.util.Collection;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * Inverted index from the MD5 hash of a smart water meter serial number to
+ * the groups the meter is a member of.
+ *
+ * Every meter found in the index is identified by a slot. Every slot points
+ * to a contiguous range of postings and every posting refers to a single
+ * group membership.
+ *
+ * An index is read-only once created and may be shared by the mapper threads
+ * of a multithreaded map task.
+ */
+public interface GroupIndex {
+
+    /**
+     * Length of the MD5 hash in bytes.
+     */
+    int HASH_LENGTH = 16;
+
+    /**
+     * Finds the slot of a serial hash.
+     *
+     * @param bytes the array that contains the serial hash.
+     * @param offset the offset of the 16 byte serial hash inside {@code bytes}.
+     * @return the slot index or -1 if the meter is not a member of any group.
+     */
+    int find(byte[] bytes, int offset);
+
+    /**
+     * Returns the index of the first posting of a slot.
+     *
+     * @param slot the slot returned by {@link #find(byte[], int)}.
+     * @return the first posting index.
+     */
+    int getFirstPosting(int slot);
+
+    /**
+     * Returns the index after the last posting of a slot.
+     *
+     * @param slot the slot returned by {@link #find(byte[], int)}.
+     * @return the exclusive upper bound of the posting indexes.
+     */
+    int getLastPosting(int slot);
+
+    /**
+     * Returns the {@link MeterDictionary} id of the meter of a slot.
+     *
+     * @param slot the slot returned by {@link #find(byte[], int)}.
+     * @return the meter id.
+     */
+    int getMeterId(int slot);
+
+    /**
+     * Returns the time zone of the group of a posting.
+     *
+     * @param posting the posting index.
+     * @return the time zone.
+     */
+    DateTimeZone getTimezone(int posting);
+
+    /**
+     * Returns the MD5 hash of the group key used as the output row key prefix.
+     *
+     * @param posting the posting index.
+     * @return the hash bytes.
+     */
+    byte[] getRowKeyPrefix(int posting);
+
+    /**
+     * Returns the distinct time zones of all groups.
+     *
+     * @return the time zones.
+     */
+    Collection<DateTimeZone> getTimezones();
+
+    /**
+     * Returns the number of groups.
+     *
+     * @return the number of groups.
+     */
+    int getGroupCount();
+
+    /**
+     * Returns the total number of postings.
+     *
+     * @return the number of postings.
+     */
+    int size();
+
+}
@@ -0,0 +1,204 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTimeZone;
+
+/**
+ * In-memory {@link GroupIndex} built from a {@link GroupCollection}.
+ *
+ * The index is an open addressing hash table keyed by the 16 byte serial hash.
+ * Every table slot points to a contiguous range of postings and every posting
+ * holds a group and the MD5 hash of the group key that is used as the output
+ * row key prefix. Lookups do not allocate any objects.
+ */
+public class GroupMemberIndex implements GroupIndex {
+
+    private long[] hashHigh;
+
+    private long[] hashLow;
+
+    private boolean[] used;
+
+    private int[] firstPosting;
+
+    private int[] lastPosting;
+
+    private int[] meterIds;
+
+    private int mask;
+
+    private int groupCount;
+
+    private Set<DateTimeZone> timezones = new HashSet<DateTimeZone>();
+
+    private Group[] postingGroups;
+
+    private byte[][] postingRowKeyPrefixes;
+
+    /**
+     * Creates a new index.
+     *
+     * @param groups the groups.
+     * @param md message digest algorithm for hashing group keys.
+     * @param meters dictionary of the meter ids of the group members.
+     * @throws UnsupportedEncodingException if UTF-8 is not supported.
+     * @throws IllegalArgumentException if a group member is not found in the
+     * dictionary.
+     */
+    public GroupMemberIndex(GroupCollection groups, MessageDigest md, MeterDictionary meters) throws UnsupportedEncodingException {
+        int members = 0;
+        for (Group group : groups.getValues()) {
+            members += group.size();
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(members, 1)) << 2;
+
+        hashHigh = new long[capacity];
+        hashLow = new long[capacity];
+        used = new boolean[capacity];
+        firstPosting = new int[capacity];
+        lastPosting = new int[capacity];
+        meterIds = new int[capacity];
+        mask = capacity - 1;
+        groupCount = groups.size();
+
+        // Count postings per serial hash. A serial listed more than once in
+        // the same group contributes a single posting.
+        int[] lastGroup = new int[capacity];
+        int groupIndex = 0;
+        int postings = 0;
+        for (Group group : groups.getValues()) {
+            groupIndex++;
+            for (int m = 0, count = group.size(); m < count; m++) {
+                int slot = insert(group.getSerialHash(m));
+                if (lastPosting[slot] == 0) {
+                    meterIds[slot] = meters.getId(group.getSerial(m));
+                    if (meterIds[slot] < 0) {
+                        throw new IllegalArgumentException(String.format("Cannot find meter [%s] in the meter dictionary.", group.getSerial(m)));
+                    }
+                }
+                if (lastGroup[slot] != groupIndex) {
+                    lastGroup[slot] = groupIndex;
+                    lastPosting[slot]++;
+                    postings++;
+                }
+            }
+        }
+
+        // Compute posting ranges
+        int offset = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (used[slot]) {
+                int count = lastPosting[slot];
+                firstPosting[slot] = offset;
+                lastPosting[slot] = offset;
+                offset += count;
+            }
+        }
+
+        // Populate postings
+        postingGroups = new Group[postings];
+        postingRowKeyPrefixes = new byte[postings][];
+
+        Arrays.fill(lastGroup, 0);
+        groupIndex = 0;
+        for (Group group : groups.getValues()) {
+            groupIndex++;
+            byte[] rowKeyPrefix = md.digest(group.getKey().getBytes("UTF-8"));
+            timezones.add(group.getTimezone());
+
+            for (int m = 0, count = group.size(); m < count; m++) {
+                byte[] serialHash = group.getSerialHash(m);
+                int slot = find(serialHash, 0);
+                if (lastGroup[slot] != groupIndex) {
+                    lastGroup[slot] = groupIndex;
+
+                    int posting = lastPosting[slot]++;
+                    postingGroups[posting] = group;
+                    postingRowKeyPrefixes[posting] = rowKeyPrefix;
+                }
+            }
+        }
+    }
+
+    private int insert(byte[] serialHash) {
+        long high = Bytes.toLong(serialHash, 0);
+        long low = Bytes.toLong(serialHash, 8);
+
+        int slot = (int) low & mask;
+        while (used[slot]) {
+            if ((hashHigh[slot] == high) && (hashLow[slot] == low)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        hashHigh[slot] = high;
+        hashLow[slot] = low;
+
+        return slot;
+    }
+
+    @Override
+    public int find(byte[] bytes, int offset) {
+        long high = Bytes.toLong(bytes, offset);
+        long low = Bytes.toLong(bytes, offset + 8);
+
+        int slot = (int) low & mask;
+        while (used[slot]) {
+            if ((hashHigh[slot] == high) && (hashLow[slot] == low)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getFirstPosting(int slot) {
+        return firstPosting[slot];
+    }
+
+    @Override
+    public int getLastPosting(int slot) {
+        return lastPosting[slot];
+    }
+
+    @Override
+    public int getMeterId(int slot) {
+        return meterIds[slot];
+    }
+
+    @Override
+    public DateTimeZone getTimezone(int posting) {
+        return postingGroups[posting].getTimezone();
+    }
+
+    @Override
+    public byte[] getRowKeyPrefix(int posting) {
+        return postingRowKeyPrefixes[posting];
+    }
+
+    @Override
+    public Collection<DateTimeZone> getTimezones() {
+        return timezones;
+    }
+
+    @Override
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    @Override
+    public int size() {
+        return postingGroups.length;
+    }
+
+}
@@ -0,0 +1,74 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Selects the groups to aggregate. A group is selected if either its type or
+ * its key is selected. The key of an area is the area key; the key of any
+ * other group is the group key.
+ */
+public class GroupSelection {
+
+    private Set<EnumGroupType> types = new HashSet<EnumGroupType>();
+
+    private Set<String> keys = new HashSet<String>();
+
+    /**
+     * Creates a selection from a comma separated list of group types and
+     * group keys. Values that match a group type name are interpreted as
+     * group types.
+     *
+     * @param value the comma separated list.
+     * @return the selection or null if the list is empty and all groups are
+     * selected.
+     */
+    public static GroupSelection fromList(String value) {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+
+        GroupSelection selection = new GroupSelection();
+
+        for (String token : StringUtils.split(value, ",")) {
+            String item = token.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+
+            EnumGroupType type = null;
+            for (EnumGroupType candidate : EnumGroupType.values()) {
+                if (candidate.name().equalsIgnoreCase(item)) {
+                    type = candidate;
+                    break;
+                }
+            }
+
+            if (type == null) {
+                selection.keys.add(item);
+            } else {
+                selection.types.add(type);
+            }
+        }
+
+        return selection;
+    }
+
+    /**
+     * Returns true if a group is selected.
+     *
+     * @param type the group type.
+     * @param groupKey the group key.
+     * @param areaKey the area key or an empty string if the group is not an area.
+     * @return true if the group is selected.
+     */
+    public boolean matches(EnumGroupType type, String groupKey, String areaKey) {
+        if (types.contains(type)) {
+            return true;
+        }
+        return keys.contains(StringUtils.isEmpty(areaKey) ? groupKey : areaKey);
+    }
+
+}
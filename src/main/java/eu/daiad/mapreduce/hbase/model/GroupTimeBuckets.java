@@ -0,0 +1,84 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Resolves the {@link TimeBucketCalculator} of a group from the MD5 hash of
+ * the group key that prefixes every output row key.
+ *
+ * Output row keys are sorted by group, hence the calculator of the last
+ * resolved group is cached.
+ */
+public class GroupTimeBuckets {
+
+    private Interval<DateTime> dateInterval;
+
+    private Interval<DateTime> bucketInterval;
+
+    private boolean completeBuckets;
+
+    private Map<DateTimeZone, TimeBucketCalculator> calculators = new HashMap<DateTimeZone, TimeBucketCalculator>();
+
+    private Map<ByteBuffer, TimeBucketCalculator> groups = new HashMap<ByteBuffer, TimeBucketCalculator>();
+
+    private byte[] lastGroupHash = new byte[GroupIndex.HASH_LENGTH];
+
+    private TimeBucketCalculator lastCalculator;
+
+    public GroupTimeBuckets(Interval<DateTime> dateInterval, Interval<DateTime> bucketInterval, boolean completeBuckets) {
+        this.dateInterval = dateInterval;
+        this.bucketInterval = bucketInterval;
+        this.completeBuckets = completeBuckets;
+    }
+
+    /**
+     * Registers the time zone of a group.
+     *
+     * @param groupHash the MD5 hash of the group key.
+     * @param timezone the time zone of the group.
+     */
+    public void add(byte[] groupHash, DateTimeZone timezone) {
+        TimeBucketCalculator calculator = calculators.get(timezone);
+        if (calculator == null) {
+            calculator = new TimeBucketCalculator(timezone, dateInterval, bucketInterval, completeBuckets);
+            calculators.put(timezone, calculator);
+        }
+        groups.put(ByteBuffer.wrap(groupHash.clone()), calculator);
+    }
+
+    /**
+     * Returns the calculator of the group of an output row key.
+     *
+     * @param rowKey the array that contains the output row key.
+     * @param offset the offset of the row key inside {@code rowKey}.
+     * @return the calculator.
+     * @throws IllegalArgumentException if the group is not registered.
+     */
+    public TimeBucketCalculator get(byte[] rowKey, int offset) {
+        if ((lastCalculator != null) &&
+            (Bytes.equals(rowKey, offset, GroupIndex.HASH_LENGTH, lastGroupHash, 0, GroupIndex.HASH_LENGTH))) {
+            return lastCalculator;
+        }
+
+        TimeBucketCalculator calculator = groups.get(ByteBuffer.wrap(rowKey, offset, GroupIndex.HASH_LENGTH));
+        if (calculator == null) {
+            throw new IllegalArgumentException("Cannot find time zone for group of the row key.");
+        }
+
+        System.arraycopy(rowKey, offset, lastGroupHash, 0, GroupIndex.HASH_LENGTH);
+        lastCalculator = calculator;
+
+        return calculator;
+    }
+
+    public int size() {
+        return groups.size();
+    }
+
+}
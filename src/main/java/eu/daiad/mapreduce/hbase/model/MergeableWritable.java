@@ -0,0 +1,38 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A {@link Writable} holding partial aggregates of a single smart water meter
+ * that can be merged with other partial aggregates of the same meter.
+ *
+ * @param <T> the implementing type.
+ */
+public interface MergeableWritable<T extends MergeableWritable<T>> extends Writable {
+
+    /**
+     * Returns a deep copy of this instance.
+     *
+     * @return the new instance.
+     */
+    T copy();
+
+    /**
+     * Copies the partial aggregates of another instance into this instance.
+     *
+     * @param writable the instance to copy.
+     */
+    void set(T writable);
+
+    /**
+     * Merges the partial aggregates of another instance into this instance.
+     *
+     * @param writable the instance to merge.
+     * @throws IOException if the two instances refer to different meters or
+     * time buckets.
+     */
+    void merge(T writable) throws IOException;
+
+}
@@ -4,16 +4,17 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
-public class MeterDataWritable implements Writable {
+/**
+ * Partial aggregates of a single meter inside a single time bucket. The time
+ * bucket is implied by the map output key and the meter is identified by its
+ * {@link MeterDictionary} id, hence the serialized form contains only the
+ * variable length meter id, the four measures and the variable length count.
+ */
+public class MeterDataWritable implements MergeableWritable<MeterDataWritable> {
 
-    private long datetime;
-
-    private String serial;
-
-    private byte[] serialHash;
+    private int meterId;
 
     private float volume;
 
@@ -30,20 +31,22 @@ public class MeterDataWritable implements Writable {
     }
 
     public MeterDataWritable(MeterDataWritable writable) {
-        datetime = writable.datetime;
-        serial = writable.serial;
-        serialHash = ArrayUtils.clone(writable.serialHash);
-        volume = writable.volume;
-        min = writable.min;
-        max = writable.max;
-        difference = writable.difference;
-        count = writable.count;
+        set(writable);
     }
 
-    public MeterDataWritable(long datetime, String serial, byte[] serialHash, float volume, float difference) {
-        this.datetime = datetime;
-        this.serial = serial;
-        this.serialHash = ArrayUtils.clone(serialHash);
+    public MeterDataWritable(int meterId, float volume, float difference) {
+        set(meterId, volume, difference);
+    }
+
+    /**
+     * Sets the writable to a single reading.
+     *
+     * @param meterId the meter id.
+     * @param volume the meter volume.
+     * @param difference the difference since the previous reading.
+     */
+    public void set(int meterId, float volume, float difference) {
+        this.meterId = meterId;
         this.volume = volume;
         min = volume - difference;
         max = volume;
@@ -51,34 +54,45 @@ public class MeterDataWritable implements Writable {
         count = 1;
     }
 
+    @Override
+    public void set(MeterDataWritable writable) {
+        meterId = writable.meterId;
+        volume = writable.volume;
+        min = writable.min;
+        max = writable.max;
+        difference = writable.difference;
+        count = writable.count;
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
-        out.writeLong(datetime);
-        out.writeUTF(serial);
-        out.write(serialHash);
+        WritableUtils.writeVInt(out, meterId);
         out.writeFloat(volume);
         out.writeFloat(min);
         out.writeFloat(max);
         out.writeFloat(difference);
-        out.writeLong(count);
+        WritableUtils.writeVLong(out, count);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        datetime = in.readLong();
-        serial = in.readUTF();
-        serialHash = new byte[16];
-        in.readFully(serialHash);
+        meterId = WritableUtils.readVInt(in);
         volume = in.readFloat();
         min = in.readFloat();
         max = in.readFloat();
         difference = in.readFloat();
-        count = in.readLong();
+        count = WritableUtils.readVLong(in);
+    }
+
+    @Override
+    public MeterDataWritable copy() {
+        return new MeterDataWritable(this);
     }
 
+    @Override
     public void merge(MeterDataWritable writable) throws IOException {
-        if ((datetime != writable.datetime) || (!serial.equals(writable.serial))) {
-            throw new IOException(String.format("Combiner error [%d , %s] [%d , %s]", datetime, serial, writable.datetime, writable.serial));
+        if (meterId != writable.meterId) {
+            throw new IOException(String.format("Combiner error [%d] [%d]", meterId, writable.meterId));
         }
         volume = (volume > writable.volume ? volume : writable.volume);
         difference += writable.difference;
@@ -94,16 +108,8 @@ public class MeterDataWritable implements Writable {
         return w;
     }
 
-    public long getDatetime() {
-        return datetime;
-    }
-
-    public String getSerial() {
-        return serial;
-    }
-
-    public byte[] getSerialHash() {
-        return serialHash;
+    public int getMeterId() {
+        return meterId;
     }
 
     public float getVolume() {
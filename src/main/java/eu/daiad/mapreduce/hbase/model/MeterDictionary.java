@@ -0,0 +1,163 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Dictionary of the meter serial numbers found in the users file and the
+ * groups file. Every serial number is identified by a dense meter id equal to
+ * the order of its first occurrence in the users file. Group members without
+ * a user are assigned the ids past the users in the order of their first
+ * occurrence in the groups file.
+ *
+ * The job driver creates the dictionary once, stores the meter id of every
+ * slot in the compiled group index and ships the dictionary to the reducers
+ * as a cached file with one serial number per line. Mappers and reducers
+ * that read the users file and the groups file instead assign the same ids.
+ */
+public class MeterDictionary {
+
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    private List<String> serials = new ArrayList<String>();
+
+    /**
+     * Creates a dictionary from the users file and the groups file.
+     *
+     * @param usersFile the users file.
+     * @param groupsFile the groups file.
+     * @return the dictionary.
+     * @throws FileNotFoundException if a file is not found.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static MeterDictionary fromFiles(File usersFile, File groupsFile) throws FileNotFoundException, IOException {
+        try (BufferedReader users = new BufferedReader(new FileReader(usersFile));
+             BufferedReader groups = new BufferedReader(new FileReader(groupsFile))) {
+            return fromReaders(users, groups);
+        }
+    }
+
+    /**
+     * Creates a dictionary from the users file and the groups file.
+     *
+     * @param users reader of the users file.
+     * @param groups reader of the groups file.
+     * @return the dictionary.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static MeterDictionary fromReaders(BufferedReader users, BufferedReader groups) throws IOException {
+        MeterDictionary dictionary = new MeterDictionary();
+
+        // The first token of the users file and the fourth token of the
+        // groups file is the meter serial number
+        dictionary.addAll(users, 0);
+        dictionary.addAll(groups, 3);
+
+        return dictionary;
+    }
+
+    /**
+     * Reads a dictionary written by {@link #write(Writer)}.
+     *
+     * @param file the dictionary file.
+     * @return the dictionary.
+     * @throws FileNotFoundException if the file is not found.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public static MeterDictionary fromFile(File file) throws FileNotFoundException, IOException {
+        MeterDictionary dictionary = new MeterDictionary();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            dictionary.addAll(reader, 0);
+        }
+
+        return dictionary;
+    }
+
+    /**
+     * Writes the serial numbers ordered by meter id, one per line. The writer
+     * must encode UTF-8.
+     *
+     * @param writer the writer.
+     * @throws IOException if an I/O exception occurs.
+     */
+    public void write(Writer writer) throws IOException {
+        for (String serial : serials) {
+            writer.write(serial);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Adds the serial numbers of a file.
+     *
+     * @param reader the file reader.
+     * @param token the index of the serial number token.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private void addAll(BufferedReader reader, int token) throws IOException {
+        String line;
+
+        line = reader.readLine();
+        while (line != null) {
+            add(StringUtils.splitByWholeSeparatorPreserveAllTokens(line, ";", 0)[token]);
+
+            line = reader.readLine();
+        }
+    }
+
+    /**
+     * Adds a serial number if it is not already present.
+     *
+     * @param serial the meter serial number.
+     * @return the meter id.
+     */
+    public int add(String serial) {
+        Integer id = ids.get(serial);
+        if (id == null) {
+            id = serials.size();
+            ids.put(serial, id);
+            serials.add(serial);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the meter id of a serial number.
+     *
+     * @param serial the meter serial number.
+     * @return the meter id or -1 if the serial number is not found.
+     */
+    public int getId(String serial) {
+        Integer id = ids.get(serial);
+        return (id == null ? -1 : id);
+    }
+
+    /**
+     * Returns the serial number of a meter id.
+     *
+     * @param id the meter id.
+     * @return the meter serial number.
+     */
+    public String getSerial(int id) {
+        return serials.get(id);
+    }
+
+    public int size() {
+        return serials.size();
+    }
+
+}
@@ -4,16 +4,17 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
-public class MeterForecastingDataWritable implements Writable {
+/**
+ * Partial aggregates of a single meter inside a single time bucket. The time
+ * bucket is implied by the map output key and the meter is identified by its
+ * {@link MeterDictionary} id, hence the serialized form contains only the
+ * variable length meter id, the difference and the variable length count.
+ */
+public class MeterForecastingDataWritable implements MergeableWritable<MeterForecastingDataWritable> {
 
-    private long datetime;
-
-    private String serial;
-
-    private byte[] serialHash;
+    private int meterId;
 
     private float difference;
 
@@ -24,44 +25,55 @@ public class MeterForecastingDataWritable implements Writable {
     }
 
     public MeterForecastingDataWritable(MeterForecastingDataWritable writable) {
-        datetime = writable.datetime;
-        serial = writable.serial;
-        serialHash = ArrayUtils.clone(writable.serialHash);
-        difference = writable.difference;
-        count = writable.count;
+        set(writable);
+    }
+
+    public MeterForecastingDataWritable(int meterId, float difference) {
+        set(meterId, difference);
     }
 
-    public MeterForecastingDataWritable(long datetime, String serial, byte[] serialHash, float difference) {
-        this.datetime = datetime;
-        this.serial = serial;
-        this.serialHash = ArrayUtils.clone(serialHash);
+    /**
+     * Sets the writable to a single reading.
+     *
+     * @param meterId the meter id.
+     * @param difference the difference since the previous reading.
+     */
+    public void set(int meterId, float difference) {
+        this.meterId = meterId;
         this.difference = difference;
         count = 1;
     }
 
+    @Override
+    public void set(MeterForecastingDataWritable writable) {
+        meterId = writable.meterId;
+        difference = writable.difference;
+        count = writable.count;
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
-        out.writeLong(datetime);
-        out.writeUTF(serial);
-        out.write(serialHash);
+        WritableUtils.writeVInt(out, meterId);
         out.writeFloat(difference);
-        out.writeLong(count);
+        WritableUtils.writeVLong(out, count);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        datetime = in.readLong();
-        serial = in.readUTF();
-        serialHash = new byte[16];
-        in.readFully(serialHash);
+        meterId = WritableUtils.readVInt(in);
         difference = in.readFloat();
-        count = in.readLong();
+        count = WritableUtils.readVLong(in);
     }
 
+    @Override
+    public MeterForecastingDataWritable copy() {
+        return new MeterForecastingDataWritable(this);
+    }
+
+    @Override
     public void merge(MeterForecastingDataWritable writable) throws IOException {
-        if ((datetime != writable.datetime) || (!serial.equals(writable.serial))) {
-            throw new IOException(String.format("Combiner error [%d , %s] [%d , %s]", datetime, serial,
-                            writable.datetime, writable.serial));
+        if (meterId != writable.meterId) {
+            throw new IOException(String.format("Combiner error [%d] [%d]", meterId, writable.meterId));
         }
         difference += writable.difference;
 
@@ -74,16 +86,8 @@ public class MeterForecastingDataWritable implements Writable {
         return w;
     }
 
-    public long getDatetime() {
-        return datetime;
-    }
-
-    public String getSerial() {
-        return serial;
-    }
-
-    public byte[] getSerialHash() {
-        return serialHash;
+    public int getMeterId() {
+        return meterId;
     }
 
     public float getDifference() {
@@ -0,0 +1,151 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+
+/**
+ * Deterministic sample of the meters and estimator of the aggregates of all
+ * meters from the aggregates of the sampled meters.
+ *
+ * A meter is sampled if the last eight bytes of the MD5 hash of its serial
+ * number, interpreted as an unsigned fraction of one, are less than the
+ * sample fraction. The first four bytes select the partition of the
+ * {@link EnumPartitionStrategy#SERIAL} strategy, hence the sample is
+ * independent of the partitions. Every meter is sampled with the same
+ * probability, hence totals are estimated by dividing the sample totals by
+ * the fraction. Error bounds are the half widths of the 95% confidence
+ * intervals of the estimates.
+ */
+public class MeterSample {
+
+    /**
+     * Offset of the sampled bytes inside the serial hash.
+     */
+    private static final int SAMPLE_OFFSET = GroupIndex.HASH_LENGTH - Bytes.SIZEOF_LONG;
+
+    /**
+     * Number of bits of the sampled bytes that are compared with the
+     * threshold. Limited to the precision of a double.
+     */
+    private static final int SAMPLE_BITS = 53;
+
+    /**
+     * Normal distribution quantile of the 95% confidence interval.
+     */
+    private static final double Z = 1.96;
+
+    private final double fraction;
+
+    private final long threshold;
+
+    /**
+     * Creates a new sample.
+     *
+     * @param fraction the fraction of the meters to sample.
+     */
+    public MeterSample(double fraction) {
+        if ((fraction <= 0) || (fraction > 1)) {
+            throw new IllegalArgumentException(String.format("Sample fraction [%s] must be in (0, 1].", fraction));
+        }
+        this.fraction = fraction;
+        this.threshold = (long) Math.ceil(fraction * (1L << SAMPLE_BITS));
+    }
+
+    /**
+     * Creates the sample of a job.
+     *
+     * @param conf the job configuration.
+     * @return the sample or null if all meters are aggregated.
+     */
+    public static MeterSample fromConfiguration(Configuration conf) {
+        String value = conf.get(EnumAggregationJobParameter.SAMPLE_FRACTION.getValue());
+        if ((value == null) || (value.trim().isEmpty())) {
+            return null;
+        }
+
+        MeterSample sample = new MeterSample(Double.parseDouble(value.trim()));
+        if (sample.getFraction() == 1) {
+            return null;
+        }
+        return sample;
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    /**
+     * Returns the threshold of the sampled bytes of a serial hash.
+     *
+     * @return the threshold.
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns true if a meter is sampled.
+     *
+     * @param buffer the array that contains the serial hash.
+     * @param offset the offset of the serial hash inside {@code buffer}.
+     * @return true if the meter is sampled.
+     */
+    public boolean contains(byte[] buffer, int offset) {
+        return contains(buffer, offset, threshold);
+    }
+
+    /**
+     * Returns true if a meter is sampled.
+     *
+     * @param buffer the array that contains the serial hash.
+     * @param offset the offset of the serial hash inside {@code buffer}.
+     * @param threshold the threshold returned by {@link #getThreshold()}.
+     * @return true if the meter is sampled.
+     */
+    public static boolean contains(byte[] buffer, int offset, long threshold) {
+        return ((Bytes.toLong(buffer, offset + SAMPLE_OFFSET) >>> (Long.SIZE - SAMPLE_BITS)) < threshold);
+    }
+
+    /**
+     * Estimates the total of all meters.
+     *
+     * @param total the total of the sampled meters.
+     * @return the estimated total.
+     */
+    public double estimateTotal(double total) {
+        return total / fraction;
+    }
+
+    /**
+     * Returns the error bound of an estimated total.
+     *
+     * @param squaredSum the sum of the squared values of the sampled meters.
+     * For a count, the number of sampled meters.
+     * @return the error bound.
+     */
+    public double getTotalError(double squaredSum) {
+        return Z * Math.sqrt((1 - fraction) * squaredSum) / fraction;
+    }
+
+    /**
+     * Returns the error bound of the average of the sampled meters as an
+     * estimate of the average of all meters. The finite population correction
+     * is applied.
+     *
+     * @param sum the sum of the values of the sampled meters.
+     * @param squaredSum the sum of the squared values of the sampled meters.
+     * @param count the number of sampled meters.
+     * @return the error bound or zero if less than two meters are sampled.
+     */
+    public double getAverageError(double sum, double squaredSum, int count) {
+        if (count < 2) {
+            return 0;
+        }
+        double variance = Math.max(0, (squaredSum - sum * sum / count) / (count - 1));
+
+        return Z * Math.sqrt((1 - fraction) * variance / count);
+    }
+
+}
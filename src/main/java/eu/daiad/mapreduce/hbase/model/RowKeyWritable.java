@@ -0,0 +1,192 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Fixed width map output key composed of an output row key and a meter id.
+ * The output row key is composed of the MD5 hash of the group key, the
+ * granularity and the bucket value.
+ *
+ * The key is serialized as its bytes without a length prefix. Keys are
+ * sorted in lexicographic order of their bytes, hence in the order of the
+ * output rows and, inside a row, in the order of the meter ids. The keys of
+ * a row are grouped by the {@link GroupingComparator}, hence a reducer
+ * receives the values of every meter of a row contiguously. The raw
+ * comparators compare the serialized bytes as unsigned longs without
+ * deserializing the keys.
+ */
+public class RowKeyWritable implements WritableComparable<RowKeyWritable> {
+
+    /**
+     * Length of the output row key in bytes.
+     */
+    public static final int ROW_KEY_LENGTH = GroupIndex.HASH_LENGTH + 1 + Bytes.SIZEOF_LONG;
+
+    /**
+     * Length of the key in bytes.
+     */
+    public static final int LENGTH = ROW_KEY_LENGTH + Bytes.SIZEOF_INT;
+
+    static {
+        WritableComparator.define(RowKeyWritable.class, new Comparator());
+    }
+
+    private final byte[] bytes;
+
+    public RowKeyWritable() {
+        bytes = new byte[LENGTH];
+    }
+
+    /**
+     * Creates a key backed by an existing array. Changes to the array are
+     * visible to the key.
+     *
+     * @param bytes the key array of length {@link #LENGTH}.
+     */
+    public RowKeyWritable(byte[] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException(String.format("Key length [%d] must be [%d].", bytes.length, LENGTH));
+        }
+        this.bytes = bytes;
+    }
+
+    /**
+     * Copies a key into this key.
+     *
+     * @param source the array that contains the key.
+     * @param offset the offset of the key inside {@code source}.
+     */
+    public void set(byte[] source, int offset) {
+        System.arraycopy(source, offset, bytes, 0, LENGTH);
+    }
+
+    /**
+     * Returns the key bytes. The output row key is stored at offset zero.
+     * The array is reused by the key.
+     *
+     * @return the key array.
+     */
+    public byte[] get() {
+        return bytes;
+    }
+
+    /**
+     * Returns a copy of the output row key.
+     *
+     * @return the new array.
+     */
+    public byte[] copyRowKey() {
+        return Arrays.copyOf(bytes, ROW_KEY_LENGTH);
+    }
+
+    public int getMeterId() {
+        return Bytes.toInt(bytes, ROW_KEY_LENGTH);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.write(bytes);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        in.readFully(bytes);
+    }
+
+    @Override
+    public int compareTo(RowKeyWritable other) {
+        return compare(bytes, 0, other.bytes, 0, LENGTH);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RowKeyWritable)) {
+            return false;
+        }
+        return Arrays.equals(bytes, ((RowKeyWritable) other).bytes);
+    }
+
+    /**
+     * Returns the hash code of the output row key, hence all keys of a row
+     * are assigned to the same reducer.
+     */
+    @Override
+    public int hashCode() {
+        return WritableComparator.hashBytes(bytes, ROW_KEY_LENGTH);
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.toStringBinary(bytes);
+    }
+
+    /**
+     * Compares the first bytes of two serialized keys. Bytes are compared in
+     * groups of eight as unsigned longs and the remaining bytes as unsigned
+     * bytes.
+     */
+    private static int compare(byte[] b1, int s1, byte[] b2, int s2, int length) {
+        int i = 0;
+        for (; i + Bytes.SIZEOF_LONG <= length; i += Bytes.SIZEOF_LONG) {
+            long l1 = WritableComparator.readLong(b1, s1 + i) ^ Long.MIN_VALUE;
+            long l2 = WritableComparator.readLong(b2, s2 + i) ^ Long.MIN_VALUE;
+            if (l1 != l2) {
+                return (l1 < l2 ? -1 : 1);
+            }
+        }
+        for (; i < length; i++) {
+            int result = (b1[s1 + i] & 0xFF) - (b2[s2 + i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Raw comparator of serialized keys. Used for sorting the map output.
+     */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(RowKeyWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return RowKeyWritable.compare(b1, s1, b2, s2, LENGTH);
+        }
+
+    }
+
+    /**
+     * Raw comparator of the output row keys of serialized keys. Used for
+     * grouping the reducer input.
+     */
+    public static class GroupingComparator extends WritableComparator {
+
+        public GroupingComparator() {
+            super(RowKeyWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return RowKeyWritable.compare(b1, s1, b2, s2, ROW_KEY_LENGTH);
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public int compare(WritableComparable a, WritableComparable b) {
+            return RowKeyWritable.compare(((RowKeyWritable) a).bytes, 0, ((RowKeyWritable) b).bytes, 0, ROW_KEY_LENGTH);
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package eu.daiad.mapreduce.hbase.model;
+
+/**
+ * Caches the bucket values of the time range covered by a single input row for
+ * a single time zone.
+ *
+ * An input row stores the readings of a single meter for a fixed time range,
+ * e.g. an hour. If the UTC offset is constant inside the range, every bucket
+ * boundary of a granularity crosses the range at most once and the bucket
+ * value of every reading is resolved by comparing its timestamp with the
+ * boundary. Granularities with more than one boundary inside the range, e.g.
+ * hours in a row that covers a day, are computed per reading. If the offset
+ * changes inside the range, all granularities are computed per reading.
+ */
+public class RowTimeBuckets {
+
+    private static final EnumGranularity[] GRANULARITIES = EnumGranularity.values();
+
+    private TimeBucketCalculator calculator;
+
+    private long rowFrom = Long.MIN_VALUE;
+
+    private long rowTo = Long.MIN_VALUE;
+
+    private boolean hoisted;
+
+    private boolean[] perReading = new boolean[GRANULARITIES.length];
+
+    private long[] boundaries = new long[GRANULARITIES.length];
+
+    private long[] before = new long[GRANULARITIES.length];
+
+    private long[] after = new long[GRANULARITIES.length];
+
+    private boolean[] beforeInInterval = new boolean[GRANULARITIES.length];
+
+    private boolean[] afterInInterval = new boolean[GRANULARITIES.length];
+
+    public RowTimeBuckets(TimeBucketCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    public TimeBucketCalculator getCalculator() {
+        return calculator;
+    }
+
+    /**
+     * Prepares the cache for the time range of a row. Consecutive rows with the
+     * same time range reuse the cached values.
+     *
+     * @param from the UTC timestamp of the first possible reading in milliseconds.
+     * @param to the UTC timestamp of the last possible reading in milliseconds.
+     */
+    public void prepare(long from, long to) {
+        if ((from == rowFrom) && (to == rowTo)) {
+            return;
+        }
+        rowFrom = from;
+        rowTo = to;
+
+        hoisted = calculator.hasConstantOffset(from, to);
+        if (!hoisted) {
+            return;
+        }
+
+        calculator.toLongs(from, before);
+        calculator.toLongs(to, after);
+
+        for (EnumGranularity granularity : GRANULARITIES) {
+            int g = granularity.ordinal();
+
+            perReading[g] = false;
+            if (before[g] == after[g]) {
+                boundaries[g] = Long.MAX_VALUE;
+            } else {
+                boundaries[g] = calculator.getBucketStart(to, granularity);
+                perReading[g] = (calculator.toLong(boundaries[g] - 1, granularity) != before[g]);
+            }
+            beforeInInterval[g] = calculator.checkInterval(before[g], granularity);
+            afterInInterval[g] = calculator.checkInterval(after[g], granularity);
+        }
+    }
+
+    /**
+     * Computes the bucket values of a reading of the current row.
+     *
+     * @param utcTimestamp the UTC timestamp of the reading in milliseconds.
+     * @param values array indexed by the {@link EnumGranularity} ordinal that
+     * receives the bucket values.
+     * @param inInterval array indexed by the {@link EnumGranularity} ordinal
+     * that receives the result of the interval check for every bucket.
+     */
+    public void toLongs(long utcTimestamp, long[] values, boolean[] inInterval) {
+        if ((!hoisted) || (utcTimestamp < rowFrom) || (utcTimestamp > rowTo)) {
+            calculator.toLongs(utcTimestamp, values);
+            for (EnumGranularity granularity : GRANULARITIES) {
+                int g = granularity.ordinal();
+                inInterval[g] = calculator.checkInterval(values[g], granularity);
+            }
+            return;
+        }
+
+        for (EnumGranularity granularity : GRANULARITIES) {
+            int g = granularity.ordinal();
+
+            if (perReading[g]) {
+                values[g] = calculator.toLong(utcTimestamp, granularity);
+                inInterval[g] = calculator.checkInterval(values[g], granularity);
+            } else if (utcTimestamp < boundaries[g]) {
+                values[g] = before[g];
+                inInterval[g] = beforeInInterval[g];
+            } else {
+                values[g] = after[g];
+                inInterval[g] = afterInInterval[g];
+            }
+        }
+    }
+
+}
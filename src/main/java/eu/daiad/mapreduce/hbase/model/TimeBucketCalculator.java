@@ -0,0 +1,337 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Computes the time bucket values of all {@link EnumGranularity} levels for
+ * UTC timestamps in a single time zone.
+ *
+ * The UTC offset transitions of the time zone and the bucket bounds of the
+ * date interval are computed once. After that, bucket values are derived
+ * using integer arithmetic on the local time without creating any objects.
+ * Bucket values are encoded as {@code yyyyMMddHH} decimal numbers, e.g. the
+ * value of the {@link EnumGranularity#DAY} bucket of 2017-03-15 is
+ * {@code 2017031500}.
+ */
+public class TimeBucketCalculator {
+
+    private static final long MILLIS_PER_HOUR = 3600000L;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /**
+     * Margin added around the date interval when computing the offset
+     * transitions.
+     */
+    private static final long TRANSITION_MARGIN = 7 * MILLIS_PER_DAY;
+
+    private static final int GRANULARITIES = EnumGranularity.values().length;
+
+    private DateTimeZone timezone;
+
+    private long tableFrom;
+
+    private long tableTo;
+
+    /**
+     * UTC instants at which a new offset becomes effective. The first entry is
+     * equal to {@code tableFrom}.
+     */
+    private long[] transitions;
+
+    /**
+     * UTC offsets in milliseconds.
+     */
+    private int[] offsets;
+
+    private long[] lowerBounds = new long[GRANULARITIES];
+
+    private long[] upperBounds = new long[GRANULARITIES];
+
+    /**
+     * Creates a new calculator that aggregates every bucket that intersects
+     * the bucket interval.
+     *
+     * @param timezone the time zone.
+     * @param dateInterval the interval of the loaded data.
+     * @param bucketInterval the interval of the buckets to aggregate. The
+     * local date time fields of the bounds are interpreted in {@code timezone}.
+     */
+    public TimeBucketCalculator(DateTimeZone timezone, Interval<DateTime> dateInterval, Interval<DateTime> bucketInterval) {
+        this(timezone, dateInterval, bucketInterval, false);
+    }
+
+    /**
+     * Creates a new calculator.
+     *
+     * @param timezone the time zone.
+     * @param dateInterval the interval of the loaded data.
+     * @param bucketInterval the interval of the buckets to aggregate. The
+     * local date time fields of the bounds are interpreted in {@code timezone}.
+     * @param completeBuckets if true, only the buckets that the bucket
+     * interval fully covers are aggregated.
+     */
+    public TimeBucketCalculator(DateTimeZone timezone, Interval<DateTime> dateInterval, Interval<DateTime> bucketInterval, boolean completeBuckets) {
+        this.timezone = timezone;
+
+        computeTransitions(dateInterval.getFrom().getMillis() - TRANSITION_MARGIN,
+                           dateInterval.getTo().getMillis() + TRANSITION_MARGIN);
+
+        for (EnumGranularity granularity : EnumGranularity.values()) {
+            Interval<DateTime> interval = bucketInterval;
+            if (completeBuckets) {
+                interval = DateUtils.getCompleteBucketInterval(bucketInterval, granularity);
+            }
+
+            DateTime localFrom = interval.getFrom().withZoneRetainFields(timezone);
+            DateTime localTo = interval.getTo().withZoneRetainFields(timezone);
+
+            lowerBounds[granularity.ordinal()] = toLong(localFrom.getMillis(), granularity);
+            upperBounds[granularity.ordinal()] = toLong(localTo.getMillis(), granularity);
+        }
+    }
+
+    private void computeTransitions(long from, long to) {
+        int count = 1;
+        long instant = from;
+        long next = timezone.nextTransition(instant);
+        while ((next > instant) && (next < to)) {
+            count++;
+            instant = next;
+            next = timezone.nextTransition(instant);
+        }
+
+        transitions = new long[count];
+        offsets = new int[count];
+
+        transitions[0] = from;
+        offsets[0] = timezone.getOffset(from);
+        for (int i = 1; i < count; i++) {
+            transitions[i] = timezone.nextTransition(transitions[i - 1]);
+            offsets[i] = timezone.getOffset(transitions[i]);
+        }
+
+        tableFrom = from;
+        tableTo = to;
+    }
+
+    public DateTimeZone getTimezone() {
+        return timezone;
+    }
+
+    /**
+     * Returns the UTC offset of the time zone at the given instant.
+     *
+     * @param utcTimestamp the UTC timestamp in milliseconds.
+     * @return the offset in milliseconds.
+     */
+    public int getOffset(long utcTimestamp) {
+        if ((utcTimestamp < tableFrom) || (utcTimestamp >= tableTo)) {
+            return timezone.getOffset(utcTimestamp);
+        }
+
+        int low = 0, high = transitions.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (transitions[middle] <= utcTimestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return offsets[low];
+    }
+
+    /**
+     * Checks if the UTC offset of the time zone is constant in the closed
+     * interval {@code [from, to]}.
+     *
+     * @param from the interval start UTC timestamp in milliseconds.
+     * @param to the interval end UTC timestamp in milliseconds.
+     * @return true if there is no offset transition inside the interval.
+     */
+    public boolean hasConstantOffset(long from, long to) {
+        long next = timezone.nextTransition(from);
+        return ((next <= from) || (next > to));
+    }
+
+    /**
+     * Returns the UTC timestamp at which the local bucket that contains the
+     * given timestamp starts. The result is accurate only if the offset does
+     * not change between the bucket start and {@code utcTimestamp}.
+     *
+     * @param utcTimestamp the UTC timestamp in milliseconds.
+     * @param granularity the granularity.
+     * @return the UTC timestamp of the bucket start in milliseconds.
+     */
+    public long getBucketStart(long utcTimestamp, EnumGranularity granularity) {
+        int offset = getOffset(utcTimestamp);
+        long local = utcTimestamp + offset;
+        long days = floorDiv(local, MILLIS_PER_DAY);
+
+        long start;
+        switch (granularity) {
+            case HOUR:
+                start = floorDiv(local, MILLIS_PER_HOUR) * MILLIS_PER_HOUR;
+                break;
+            case DAY:
+                start = days * MILLIS_PER_DAY;
+                break;
+            case WEEK:
+                start = (days - floorMod(days + 3, 7)) * MILLIS_PER_DAY;
+                break;
+            case MONTH:
+                long date = daysToLong(days);
+                start = (days - ((date / 100) % 100) + 1) * MILLIS_PER_DAY;
+                break;
+            case YEAR:
+                start = longToDays(daysToLong(days) / 1000000, 1, 1) * MILLIS_PER_DAY;
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+        return start - offset;
+    }
+
+    /**
+     * Computes the bucket value of a UTC timestamp for a single granularity.
+     *
+     * @param utcTimestamp the UTC timestamp in milliseconds.
+     * @param granularity the granularity.
+     * @return the bucket value.
+     */
+    public long toLong(long utcTimestamp, EnumGranularity granularity) {
+        long local = utcTimestamp + getOffset(utcTimestamp);
+        long days = floorDiv(local, MILLIS_PER_DAY);
+
+        switch (granularity) {
+            case HOUR:
+                return daysToLong(days) + floorMod(local, MILLIS_PER_DAY) / MILLIS_PER_HOUR;
+            case DAY:
+                return daysToLong(days);
+            case WEEK:
+                return daysToLong(days - floorMod(days + 3, 7));
+            case MONTH:
+                return (daysToLong(days) / 10000) * 10000 + 100;
+            case YEAR:
+                return (daysToLong(days) / 1000000) * 1000000 + 10100;
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+    }
+
+    /**
+     * Computes the bucket values of a UTC timestamp for all granularity levels.
+     *
+     * @param utcTimestamp the UTC timestamp in milliseconds.
+     * @param values array indexed by the {@link EnumGranularity} ordinal that
+     * receives the bucket values.
+     */
+    public void toLongs(long utcTimestamp, long[] values) {
+        long local = utcTimestamp + getOffset(utcTimestamp);
+        long days = floorDiv(local, MILLIS_PER_DAY);
+        long day = daysToLong(days);
+
+        values[EnumGranularity.HOUR.ordinal()] = day + floorMod(local, MILLIS_PER_DAY) / MILLIS_PER_HOUR;
+        values[EnumGranularity.DAY.ordinal()] = day;
+        values[EnumGranularity.WEEK.ordinal()] = daysToLong(days - floorMod(days + 3, 7));
+        values[EnumGranularity.MONTH.ordinal()] = (day / 10000) * 10000 + 100;
+        values[EnumGranularity.YEAR.ordinal()] = (day / 1000000) * 1000000 + 10100;
+    }
+
+    /**
+     * Converts an {@link EnumGranularity#HOUR} or {@link EnumGranularity#DAY}
+     * bucket value to the value of the bucket of the given granularity that
+     * contains it. Bucket values are local, hence no time zone is required.
+     *
+     * @param datetime the {@link EnumGranularity#HOUR} or {@link EnumGranularity#DAY} bucket value.
+     * @param granularity the target granularity.
+     * @return the bucket value.
+     */
+    public static long rollup(long datetime, EnumGranularity granularity) {
+        long day = (datetime / 100) * 100;
+
+        switch (granularity) {
+            case HOUR:
+                return datetime;
+            case DAY:
+                return day;
+            case WEEK:
+                long days = longToDays(day / 1000000, (day / 10000) % 100, (day / 100) % 100);
+                return daysToLong(days - floorMod(days + 3, 7));
+            case MONTH:
+                return (day / 10000) * 10000 + 100;
+            case YEAR:
+                return (day / 1000000) * 1000000 + 10100;
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+    }
+
+    /**
+     * Checks if a bucket value is inside the date interval. If no bucket of
+     * the granularity is aggregated, false is returned for every value.
+     *
+     * @param datetime the bucket value.
+     * @param granularity the granularity of the bucket.
+     * @return true if the bucket must be aggregated.
+     */
+    public boolean checkInterval(long datetime, EnumGranularity granularity) {
+        return ((lowerBounds[granularity.ordinal()] <= datetime) && (datetime <= upperBounds[granularity.ordinal()]));
+    }
+
+    /**
+     * Converts the number of days since the epoch to a {@code yyyyMMdd00}
+     * value in the proleptic Gregorian calendar.
+     *
+     * @param days days since 1970-01-01.
+     * @return the encoded date.
+     */
+    private static long daysToLong(long days) {
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+
+        long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        long month = (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return year * 1000000 + month * 10000 + day * 100;
+    }
+
+    /**
+     * Converts a date in the proleptic Gregorian calendar to the number of days
+     * since the epoch.
+     *
+     * @param year the year.
+     * @param month the month of year starting from 1.
+     * @param day the day of month starting from 1.
+     * @return days since 1970-01-01.
+     */
+    private static long longToDays(long year, long month, long day) {
+        year -= (month <= 2 ? 1 : 0);
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if (((x % y) != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+}
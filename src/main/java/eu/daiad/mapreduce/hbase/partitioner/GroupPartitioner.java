@@ -0,0 +1,24 @@
+package eu.daiad.mapreduce.hbase.partitioner;
+
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+
+/**
+ * Partitions map output by the group hash prefix of the output row key, hence
+ * all time buckets of a group are processed by the same reducer.
+ *
+ * @param <V> the map output value type.
+ */
+public class GroupPartitioner<V> extends Partitioner<RowKeyWritable, V> {
+
+    @Override
+    public int getPartition(RowKeyWritable key, V value, int numPartitions) {
+        int hash = WritableComparator.hashBytes(key.get(), GroupIndex.HASH_LENGTH);
+
+        return (hash & Integer.MAX_VALUE) % numPartitions;
+    }
+
+}
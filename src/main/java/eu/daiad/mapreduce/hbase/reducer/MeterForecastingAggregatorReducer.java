@@ -7,8 +7,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,16 +23,25 @@ import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableReducer;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.joda.time.DateTimeZone;
 
 import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
 import eu.daiad.mapreduce.hbase.model.AggregatedMeterForecastingData;
+import eu.daiad.mapreduce.hbase.model.DateUtils;
+import eu.daiad.mapreduce.hbase.model.EnumGranularity;
+import eu.daiad.mapreduce.hbase.model.GroupIndex;
+import eu.daiad.mapreduce.hbase.model.GroupTimeBuckets;
+import eu.daiad.mapreduce.hbase.model.MeterDictionary;
 import eu.daiad.mapreduce.hbase.model.MeterForecastingDataWritable;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+import eu.daiad.mapreduce.hbase.model.RowKeyWritable;
+import eu.daiad.mapreduce.hbase.model.TimeBucketCalculator;
 import eu.daiad.mapreduce.hbase.model.UserData;
 
 /**
  * Reducer for smart water meter data aggregation job.
  */
-public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableBytesWritable, MeterForecastingDataWritable, ImmutableBytesWritable> {
+public class MeterForecastingAggregatorReducer extends TableReducer<RowKeyWritable, MeterForecastingDataWritable, ImmutableBytesWritable> {
 
     /**
      * Counter for the reducer.
@@ -69,6 +80,58 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
      */
     private Map<String, UserData> users = new HashMap<String, UserData>();
 
+    /**
+     * Dictionary from the meter ids of the reducer input values to meter
+     * serial numbers.
+     */
+    private MeterDictionary meters;
+
+    /**
+     * Granularity levels.
+     */
+    private static final EnumGranularity[] GRANULARITIES = EnumGranularity.values();
+
+    /**
+     * Selected granularity levels indexed by granularity.
+     */
+    private boolean[] selected = new boolean[GRANULARITIES.length];
+
+    /**
+     * True if the coarser granularity levels are derived from the finest
+     * level emitted by the mappers.
+     */
+    private boolean rollup;
+
+    /**
+     * Time bucket calculators of all groups. Initialized only in rollup mode.
+     */
+    private GroupTimeBuckets timeBuckets;
+
+    /**
+     * Row keys of the open aggregates indexed by granularity.
+     */
+    private byte[][] bucketKeys = new byte[GRANULARITIES.length][];
+
+    /**
+     * Open aggregates indexed by granularity.
+     */
+    private AggregatedMeterForecastingData[] bucketAggregates = new AggregatedMeterForecastingData[GRANULARITIES.length];
+
+    /**
+     * Bucket values of the current key indexed by granularity.
+     */
+    private long[] datetimes = new long[GRANULARITIES.length];
+
+    /**
+     * Interval check results of the current key indexed by granularity.
+     */
+    private boolean[] inInterval = new boolean[GRANULARITIES.length];
+
+    /**
+     * Sample of the aggregated meters or null if all meters are aggregated.
+     */
+    private MeterSample sample;
+
     /**
      * Parses input file with users and populates a map of {@link UserData}.
      * @param conf job configuration.
@@ -95,11 +158,73 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
         return users.size();
     }
 
+    /**
+     * Initializes the meter dictionary. If the job driver has compiled the
+     * group index, the cached dictionary file of the driver is read.
+     * Otherwise, the dictionary is created from the input files with users and
+     * group members, as in the mappers.
+     *
+     * @param conf job configuration.
+     * @throws FileNotFoundException if an input file is not found.
+     * @throws IOException if an I/O exception occurs.
+     */
+    private void loadMeters(Configuration conf) throws FileNotFoundException, IOException {
+        String metersFilename = conf.get(EnumAggregationJobParameter.FILENAME_METERS.getValue());
+
+        if (!StringUtils.isBlank(metersFilename)) {
+            File cachedFile = Paths.get("./", metersFilename).toFile();
+            if (cachedFile.exists()) {
+                meters = MeterDictionary.fromFile(cachedFile);
+
+                return;
+            }
+        }
+
+        File usersFile = Paths.get("./" + conf.get(EnumAggregationJobParameter.FILENAME_USERS.getValue())).toFile();
+        File groupsFile = Paths.get("./" + conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue())).toFile();
+
+        meters = MeterDictionary.fromFiles(usersFile, groupsFile);
+    }
+
+    /**
+     * Parses input file with group members and registers the time zone of
+     * every group.
+     *
+     * @param conf job configuration.
+     * @throws FileNotFoundException if the input file is not found.
+     * @throws IOException if an I/O exception occurs.
+     * @throws NoSuchAlgorithmException if the hashing algorithms is not supported.
+     */
+    private int parseGroups(Configuration conf) throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+
+        DateUtils dateUtils = new DateUtils(conf);
+
+        timeBuckets = new GroupTimeBuckets(dateUtils.getDateInterval(), dateUtils.getBucketInterval(), dateUtils.isExact());
+
+        File cachedFile = Paths.get("./" + conf.get(EnumAggregationJobParameter.FILENAME_GROUPS.getValue())).toFile();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(cachedFile))) {
+            String line;
+
+            line = reader.readLine();
+            while (line != null) {
+                String[] tokens = StringUtils.splitByWholeSeparatorPreserveAllTokens(line, ";", 0);
+
+                timeBuckets.add(md.digest((tokens[1] + tokens[2]).getBytes("UTF-8")), DateTimeZone.forID(tokens[4]));
+
+                line = reader.readLine();
+            }
+        }
+
+        return timeBuckets.size();
+    }
+
     /**
      * Called once at the start of the task.
      */
     @Override
-    protected void setup(Reducer<ImmutableBytesWritable, MeterForecastingDataWritable, ImmutableBytesWritable, Mutation>.Context context) throws IOException, InterruptedException {
+    protected void setup(Reducer<RowKeyWritable, MeterForecastingDataWritable, ImmutableBytesWritable, Mutation>.Context context) throws IOException, InterruptedException {
         super.setup(context);
 
         Configuration conf = context.getConfiguration();
@@ -109,8 +234,21 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
 
         limit = context.getConfiguration().getInt("top.query.limit", 5);
 
+        rollup = conf.getBoolean(EnumAggregationJobParameter.ROLLUP.getValue(), false);
+
+        sample = MeterSample.fromConfiguration(conf);
+
+        for (EnumGranularity granularity : EnumGranularity.fromList(conf.get(EnumAggregationJobParameter.GRANULARITIES.getValue()))) {
+            selected[granularity.ordinal()] = true;
+        }
+
         try {
             parseUsers(conf);
+            loadMeters(conf);
+
+            if (rollup) {
+                parseGroups(conf);
+            }
         } catch (NoSuchAlgorithmException e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -122,30 +260,141 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
      * This method is called once for each key.
      */
     @Override
-    public void reduce(ImmutableBytesWritable key, Iterable<MeterForecastingDataWritable> values, Context context) throws IOException, InterruptedException {
+    public void reduce(RowKeyWritable key, Iterable<MeterForecastingDataWritable> values, Context context) throws IOException, InterruptedException {
 
         context.getCounter(Counters.REDUCER_INPUT_ROWS).increment(1);
 
-        AggregatedMeterForecastingData aggregate = new AggregatedMeterForecastingData(key.get(), limit);
+        if (rollup) {
+            rollup(key, values, context);
+            return;
+        }
+
+        if (!selected[EnumGranularity.fromValue(key.get()[GroupIndex.HASH_LENGTH]).ordinal()]) {
+            return;
+        }
+
+        AggregatedMeterForecastingData aggregate = new AggregatedMeterForecastingData(key.copyRowKey(), limit, true);
         for (MeterForecastingDataWritable value : values) {
             aggregate.add(value);
             context.getCounter(Counters.REDUCER_INPUT_VALUES).increment(1);
         }
 
-        Put p = new Put(key.get());
+        writeAggregate(aggregate, context);
+    }
 
-        byte[] column = Bytes.toBytes("sum");
-        p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getSum()));
+    /**
+     * Called once at the end of the task.
+     */
+    @Override
+    protected void cleanup(Reducer<RowKeyWritable, MeterForecastingDataWritable, ImmutableBytesWritable, Mutation>.Context context) throws IOException, InterruptedException {
+        for (EnumGranularity granularity : GRANULARITIES) {
+            closeBucket(granularity, context);
+        }
+
+        super.cleanup(context);
+    }
+
+    /**
+     * Adds the per meter partial aggregates of a single finest granularity
+     * bucket to the open aggregates of the same and all coarser granularity
+     * levels. Keys are sorted by group and bucket value, hence the buckets of
+     * every granularity level of a group arrive in ascending order and an open
+     * aggregate is written when the first key of the next bucket arrives.
+     *
+     * @param key the row key of the finest granularity bucket.
+     * @param values the per meter partial aggregates.
+     * @param context the reducer context.
+     */
+    private void rollup(RowKeyWritable key, Iterable<MeterForecastingDataWritable> values, Context context) throws IOException, InterruptedException {
+        byte[] rowKey = key.get();
+
+        TimeBucketCalculator calculator = timeBuckets.get(rowKey, 0);
+        EnumGranularity finest = EnumGranularity.fromValue(rowKey[GroupIndex.HASH_LENGTH]);
+        long datetime = Bytes.toLong(rowKey, GroupIndex.HASH_LENGTH + 1);
+
+        for (EnumGranularity granularity : GRANULARITIES) {
+            int g = granularity.ordinal();
+
+            inInterval[g] = false;
+            if ((selected[g]) && (granularity.ordinal() >= finest.ordinal())) {
+                datetimes[g] = TimeBucketCalculator.rollup(datetime, granularity);
+                inInterval[g] = calculator.checkInterval(datetimes[g], granularity);
+            }
+            if (inInterval[g]) {
+                openBucket(rowKey, granularity, datetimes[g], context);
+            }
+        }
+
+        for (MeterForecastingDataWritable value : values) {
+            for (EnumGranularity granularity : GRANULARITIES) {
+                int g = granularity.ordinal();
+
+                if (inInterval[g]) {
+                    bucketAggregates[g].add(value);
+                }
+            }
+            context.getCounter(Counters.REDUCER_INPUT_VALUES).increment(1);
+        }
+    }
+
+    /**
+     * Ensures that the open aggregate of a granularity level refers to the
+     * given bucket. If another bucket is open, its aggregate is written first.
+     */
+    private void openBucket(byte[] groupKey, EnumGranularity granularity, long datetime, Context context) throws IOException, InterruptedException {
+        int g = granularity.ordinal();
+
+        byte[] rowKey = new byte[GroupIndex.HASH_LENGTH + 1 + Bytes.SIZEOF_LONG];
+        System.arraycopy(groupKey, 0, rowKey, 0, GroupIndex.HASH_LENGTH);
+        rowKey[GroupIndex.HASH_LENGTH] = granularity.getValue();
+        Bytes.putLong(rowKey, GroupIndex.HASH_LENGTH + 1, datetime);
+
+        if ((bucketKeys[g] != null) && (Arrays.equals(bucketKeys[g], rowKey))) {
+            return;
+        }
+
+        closeBucket(granularity, context);
+
+        bucketKeys[g] = rowKey;
+        bucketAggregates[g] = new AggregatedMeterForecastingData(rowKey, limit, false);
+    }
+
+    /**
+     * Writes the open aggregate of a granularity level if one exists.
+     */
+    private void closeBucket(EnumGranularity granularity, Context context) throws IOException, InterruptedException {
+        int g = granularity.ordinal();
+
+        if (bucketKeys[g] != null) {
+            writeAggregate(bucketAggregates[g], context);
+
+            bucketKeys[g] = null;
+            bucketAggregates[g] = null;
+        }
+    }
+
+    /**
+     * Writes the aggregate of a single output row.
+     */
+    private void writeAggregate(AggregatedMeterForecastingData aggregate, Context context) throws IOException, InterruptedException {
+        Put p = new Put(aggregate.getRowKey());
 
-        column = Bytes.toBytes("min");
+        if (sample != null) {
+            writeEstimates(p, aggregate);
+        } else {
+            byte[] column = Bytes.toBytes("sum");
+            p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getSum()));
+
+            column = Bytes.toBytes("cnt");
+            p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getCount()));
+        }
+
+        byte[] column = Bytes.toBytes("min");
         p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getMin()));
 
         column = Bytes.toBytes("max");
         p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getMax()));
 
-        column = Bytes.toBytes("cnt");
-        p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getCount()));
-
         column = Bytes.toBytes("avg");
         p.addColumn(columnFamily, column, Bytes.toBytes(aggregate.getAverage()));
 
@@ -155,10 +404,35 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
         column = Bytes.toBytes("bottom");
         p.addColumn(columnFamily, column, bottomToString(aggregate).getBytes(StandardCharsets.UTF_8));
 
-        context.write(key, p);
+        context.write(new ImmutableBytesWritable(aggregate.getRowKey()), p);
         context.getCounter(Counters.REDUCER_OUTPUT_ROWS).increment(1);
     }
 
+    /**
+     * Writes the estimated sum and count of all meters of a sampling job and
+     * their error bounds. The average is the average of the sampled meters.
+     */
+    private void writeEstimates(Put p, AggregatedMeterForecastingData aggregate) {
+        double sum = aggregate.getSum();
+        double squaredSum = aggregate.getSquaredSum();
+        int count = aggregate.getCount();
+
+        byte[] column = Bytes.toBytes("sum");
+        p.addColumn(columnFamily, column, Bytes.toBytes((float) sample.estimateTotal(sum)));
+
+        column = Bytes.toBytes("sum.err");
+        p.addColumn(columnFamily, column, Bytes.toBytes((float) sample.getTotalError(squaredSum)));
+
+        column = Bytes.toBytes("cnt");
+        p.addColumn(columnFamily, column, Bytes.toBytes((int) Math.round(sample.estimateTotal(count))));
+
+        column = Bytes.toBytes("cnt.err");
+        p.addColumn(columnFamily, column, Bytes.toBytes((float) sample.getTotalError(count)));
+
+        column = Bytes.toBytes("avg.err");
+        p.addColumn(columnFamily, column, Bytes.toBytes((float) sample.getAverageError(sum, squaredSum, count)));
+    }
+
     public String topToString(AggregatedMeterForecastingData aggregate) {
         return writableListToString(aggregate.getTop());
     }
@@ -174,14 +448,16 @@ public class MeterForecastingAggregatorReducer extends TableReducer<ImmutableByt
 
         List<String> tokens = new ArrayList<String>();
         for (MeterForecastingDataWritable w : writables) {
-            UserData user = users.get(w.getSerial());
+            String serial = meters.getSerial(w.getMeterId());
+
+            UserData user = users.get(serial);
             if (user == null) {
-                throw new NullPointerException(String.format("Cannot find user for meter [%s].", w.getSerial()));
+                throw new NullPointerException(String.format("Cannot find user for meter [%s].", serial));
             }
 
             tokens.add(user.getKey());
             tokens.add(user.getUsername());
-            tokens.add(w.getSerial());
+            tokens.add(serial);
             tokens.add(Float.toString(w.getDifference()));
         }
         return StringUtils.join(tokens, ";");
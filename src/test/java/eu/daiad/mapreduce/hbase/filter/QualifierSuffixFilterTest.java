@@ -0,0 +1,70 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import eu.daiad.mapreduce.hbase.mapper.MeterAggregatorMapper;
+import eu.daiad.mapreduce.hbase.mapper.MeterForecastingAggregatorMapper;
+
+public class QualifierSuffixFilterTest {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+
+    private static final byte[] FAMILY = Bytes.toBytes("cf");
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        QualifierSuffixFilter filter = new QualifierSuffixFilter(MeterAggregatorMapper.QUALIFIER_SUFFIXES);
+
+        // The region servers deserialize the filter from its protocol buffer
+        Filter copy = ProtobufUtil.toFilter(ProtobufUtil.toFilter(filter));
+
+        assertTrue(copy instanceof QualifierSuffixFilter);
+        assertTrue(Bytes.equals(filter.toByteArray(), copy.toByteArray()));
+
+        assertEquals(ReturnCode.INCLUDE, copy.filterKeyValue(cell((short) 10, 'v')));
+        assertEquals(ReturnCode.INCLUDE, copy.filterKeyValue(cell((short) 10, 'd')));
+        assertEquals(ReturnCode.SKIP, copy.filterKeyValue(cell((short) 10, 'x')));
+    }
+
+    @Test
+    public void testQualifiers() throws Exception {
+        QualifierSuffixFilter filter = new QualifierSuffixFilter(MeterForecastingAggregatorMapper.QUALIFIER_SUFFIXES);
+
+        // Forecasting qualifiers start with an int time stamp offset
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(new KeyValue(ROW, FAMILY, Bytes.add(Bytes.toBytes(3600), new byte[] { 1, 'd' }))));
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(new KeyValue(ROW, FAMILY, Bytes.add(Bytes.toBytes(3600), new byte[] { 1, 'v' }))));
+
+        // The name length is part of the suffix
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(new KeyValue(ROW, FAMILY, new byte[] { 0, 10, 2, 'x', 'd' })));
+
+        // Qualifiers shorter than the suffix
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(new KeyValue(ROW, FAMILY, new byte[] { 'd' })));
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(new KeyValue(ROW, FAMILY, new byte[0])));
+    }
+
+    @Test
+    public void testEmptyFilterSkipsAllCells() throws Exception {
+        Filter filter = ProtobufUtil.toFilter(ProtobufUtil.toFilter(new QualifierSuffixFilter(new byte[0][])));
+
+        assertEquals(ReturnCode.SKIP, filter.filterKeyValue(cell((short) 10, 'v')));
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testParseTruncatedSuffix() throws Exception {
+        QualifierSuffixFilter.parseFrom(new byte[] { 2, 1 });
+    }
+
+    private static KeyValue cell(short offset, char name) {
+        return new KeyValue(ROW, FAMILY, Bytes.add(Bytes.toBytes(offset), new byte[] { 1, (byte) name }), Bytes.toBytes(1f));
+    }
+
+}
@@ -0,0 +1,192 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import static eu.daiad.mapreduce.hbase.filter.SerialHashFilterTest.hash;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.daiad.mapreduce.hbase.mapper.MeterAggregatorMapper;
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+
+/**
+ * Scans a table of an HBase mini-cluster with the scan filters, hence the
+ * filters are serialized, deserialized and evaluated by a region server.
+ */
+public class ScanFilterMiniClusterTest {
+
+    private static final TableName TABLE = TableName.valueOf("meter-data");
+
+    private static final byte[] FAMILY = Bytes.toBytes("cf");
+
+    private static final int METERS = 20;
+
+    private static final int BUCKETS = 3;
+
+    private static final char[] NAMES = { 'v', 'd', 'x' };
+
+    private static HBaseTestingUtility utility;
+
+    private static Table table;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        utility = new HBaseTestingUtility();
+        utility.startMiniCluster();
+
+        table = utility.createTable(TABLE, FAMILY);
+
+        List<Put> puts = new ArrayList<Put>();
+        for (int m = 0; m < METERS; m++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                Put put = new Put(rowKey(m, b));
+                for (short offset = 0; offset < 3600; offset += 900) {
+                    for (char name : NAMES) {
+                        put.addColumn(FAMILY, qualifier(offset, name), Bytes.toBytes((float) offset));
+                    }
+                }
+                puts.add(put);
+            }
+        }
+        table.put(puts);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (table != null) {
+            table.close();
+        }
+        utility.shutdownMiniCluster();
+    }
+
+    @Test
+    public void testSerialHashFilter() throws Exception {
+        Set<Integer> members = new TreeSet<Integer>(Arrays.asList(1, 4, 7, 19));
+
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (int m : members) {
+            hashes.add(hash("S" + m));
+        }
+
+        List<Result> results = scan(new SerialHashFilter(hashes));
+
+        assertEquals(members.size() * BUCKETS, results.size());
+        for (Result result : results) {
+            assertEquals(true, members.contains(getMeter(result.getRow())));
+            assertEquals(4 * NAMES.length, result.rawCells().length);
+        }
+    }
+
+    @Test
+    public void testSerialSampleFilter() throws Exception {
+        MeterSample sample = new MeterSample(0.5);
+
+        int expected = 0;
+        for (int m = 0; m < METERS; m++) {
+            if (sample.contains(hash("S" + m), 0)) {
+                expected += BUCKETS;
+            }
+        }
+
+        List<Result> results = scan(new SerialSampleFilter(sample.getThreshold()));
+
+        assertEquals(expected, results.size());
+        for (Result result : results) {
+            assertEquals(true, sample.contains(result.getRow(), SerialHashFilter.SERIAL_HASH_OFFSET));
+        }
+    }
+
+    @Test
+    public void testQualifierSuffixFilter() throws Exception {
+        List<Result> results = scan(new QualifierSuffixFilter(MeterAggregatorMapper.QUALIFIER_SUFFIXES));
+
+        assertEquals(METERS * BUCKETS, results.size());
+        for (Result result : results) {
+            assertEquals(8, result.rawCells().length);
+            for (Cell cell : result.rawCells()) {
+                byte name = CellUtil.cloneQualifier(cell)[3];
+                assertEquals(true, (name == 'v') || (name == 'd'));
+            }
+        }
+    }
+
+    @Test
+    public void testCombinedFilters() throws Exception {
+        MeterSample sample = new MeterSample(0.5);
+
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        int expected = 0;
+        for (int m = 0; m < METERS; m += 2) {
+            hashes.add(hash("S" + m));
+            if (sample.contains(hash("S" + m), 0)) {
+                expected += BUCKETS;
+            }
+        }
+
+        FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        filters.addFilter(new SerialHashFilter(hashes));
+        filters.addFilter(new SerialSampleFilter(sample.getThreshold()));
+        filters.addFilter(new QualifierSuffixFilter(MeterAggregatorMapper.QUALIFIER_SUFFIXES));
+
+        List<Result> results = scan(filters);
+
+        assertEquals(expected, results.size());
+        for (Result result : results) {
+            assertEquals(0, getMeter(result.getRow()) % 2);
+            assertEquals(8, result.rawCells().length);
+        }
+    }
+
+    private static List<Result> scan(Filter filter) throws IOException {
+        Scan scan = new Scan();
+        scan.addFamily(FAMILY);
+        scan.setFilter(filter);
+
+        List<Result> results = new ArrayList<Result>();
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result : scanner) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns an input table row key: the partition, the time bucket and the
+     * serial hash. The meter index is appended for identifying the row.
+     */
+    private static byte[] rowKey(int meter, int bucket) throws Exception {
+        return Bytes.add(Bytes.toBytes((short) 0),
+                         Bytes.add(Bytes.toBytes(Long.MAX_VALUE / 1000 - 1490000000L - bucket * 3600L), hash("S" + meter)),
+                         Bytes.toBytes(meter));
+    }
+
+    private static int getMeter(byte[] rowKey) {
+        return Bytes.toInt(rowKey, rowKey.length - Bytes.SIZEOF_INT);
+    }
+
+    private static byte[] qualifier(short offset, char name) {
+        return Bytes.add(Bytes.toBytes(offset), new byte[] { 1, (byte) name });
+    }
+
+}
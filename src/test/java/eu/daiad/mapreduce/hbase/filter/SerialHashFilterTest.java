@@ -0,0 +1,116 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+public class SerialHashFilterTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes("cf");
+
+    private static final byte[] QUALIFIER = { 0, 0, 1, 'v' };
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        SerialHashFilter filter = new SerialHashFilter(Arrays.asList(hash("S1"), hash("S2"), hash("S1")));
+        assertEquals(2, filter.size());
+
+        // The region servers deserialize the filter from its protocol buffer
+        Filter copy = ProtobufUtil.toFilter(ProtobufUtil.toFilter(filter));
+
+        assertTrue(copy instanceof SerialHashFilter);
+        assertEquals(2, ((SerialHashFilter) copy).size());
+        assertTrue(Bytes.equals(filter.toByteArray(), copy.toByteArray()));
+
+        assertAccepted(copy, rowKey(hash("S1")));
+        assertAccepted(copy, rowKey(hash("S2")));
+        assertRejected(copy, rowKey(hash("S3")));
+    }
+
+    @Test
+    public void testRowKeys() throws Exception {
+        List<byte[]> hashes = Arrays.asList(hash("S1"), hash("S2"), hash("S3"), hash("S4"));
+        SerialHashFilter filter = new SerialHashFilter(hashes);
+
+        for (byte[] hash : hashes) {
+            assertAccepted(filter, rowKey(hash));
+        }
+        assertRejected(filter, rowKey(hash("S5")));
+
+        // Row keys shorter than the serial hash are rejected
+        assertRejected(filter, Bytes.head(rowKey(hash("S1")), SerialHashFilter.SERIAL_HASH_OFFSET + 4));
+
+        // A row key inside a larger array
+        byte[] buffer = Bytes.add(new byte[7], rowKey(hash("S2")), new byte[3]);
+        filter.reset();
+        assertFalse(filter.filterRowKey(buffer, 7, buffer.length - 10));
+    }
+
+    @Test
+    public void testRowStateIsReset() throws Exception {
+        SerialHashFilter filter = new SerialHashFilter(Arrays.asList(hash("S1")));
+
+        assertRejected(filter, rowKey(hash("S2")));
+        assertAccepted(filter, rowKey(hash("S1")));
+        assertRejected(filter, rowKey(hash("S2")));
+    }
+
+    @Test
+    public void testEmptyFilterRejectsAllRows() throws Exception {
+        SerialHashFilter filter = new SerialHashFilter(Arrays.<byte[]> asList());
+
+        assertRejected(filter, rowKey(hash("S1")));
+        assertRejected(ProtobufUtil.toFilter(ProtobufUtil.toFilter(filter)), rowKey(hash("S1")));
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testParseInvalidLength() throws Exception {
+        SerialHashFilter.parseFrom(new byte[17]);
+    }
+
+    /**
+     * Simulates the region server calls for a row with a single cell.
+     */
+    static void assertAccepted(Filter filter, byte[] rowKey) throws Exception {
+        KeyValue cell = new KeyValue(rowKey, FAMILY, QUALIFIER, Bytes.toBytes(1f));
+
+        filter.reset();
+        assertFalse(filter.filterRowKey(rowKey, 0, rowKey.length));
+        assertEquals(ReturnCode.INCLUDE, filter.filterKeyValue(cell));
+        assertFalse(filter.filterRow());
+    }
+
+    static void assertRejected(Filter filter, byte[] rowKey) throws Exception {
+        KeyValue cell = new KeyValue(rowKey, FAMILY, QUALIFIER, Bytes.toBytes(1f));
+
+        filter.reset();
+        assertTrue(filter.filterRowKey(rowKey, 0, rowKey.length));
+        assertEquals(ReturnCode.NEXT_ROW, filter.filterKeyValue(cell));
+        assertTrue(filter.filterRow());
+    }
+
+    static byte[] hash(String serial) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(serial.getBytes("UTF-8"));
+    }
+
+    /**
+     * Returns an input table row key: the partition, the time bucket and the
+     * serial hash.
+     */
+    static byte[] rowKey(byte[] serialHash) {
+        return Bytes.add(Bytes.toBytes((short) 1), Bytes.toBytes(Long.MAX_VALUE / 1000 - 1490000000L), serialHash);
+    }
+
+}
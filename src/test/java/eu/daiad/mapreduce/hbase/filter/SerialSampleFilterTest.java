@@ -0,0 +1,52 @@
+package eu.daiad.mapreduce.hbase.filter;
+
+import static eu.daiad.mapreduce.hbase.filter.SerialHashFilterTest.assertAccepted;
+import static eu.daiad.mapreduce.hbase.filter.SerialHashFilterTest.assertRejected;
+import static eu.daiad.mapreduce.hbase.filter.SerialHashFilterTest.hash;
+import static eu.daiad.mapreduce.hbase.filter.SerialHashFilterTest.rowKey;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.junit.Test;
+
+import eu.daiad.mapreduce.hbase.model.MeterSample;
+
+public class SerialSampleFilterTest {
+
+    @Test
+    public void testMatchesSample() throws Exception {
+        MeterSample sample = new MeterSample(0.3);
+
+        // The region servers deserialize the filter from its protocol buffer
+        Filter filter = ProtobufUtil.toFilter(ProtobufUtil.toFilter(new SerialSampleFilter(sample.getThreshold())));
+        assertTrue(filter instanceof SerialSampleFilter);
+
+        int sampled = 0;
+        for (int m = 0; m < 1000; m++) {
+            byte[] hash = hash("S" + m);
+            if (sample.contains(hash, 0)) {
+                assertAccepted(filter, rowKey(hash));
+                sampled++;
+            } else {
+                assertRejected(filter, rowKey(hash));
+            }
+        }
+        assertTrue(String.format("Sampled %d of 1000 meters", sampled), (sampled > 200) && (sampled < 400));
+    }
+
+    @Test
+    public void testShortRowKeyIsRejected() throws Exception {
+        SerialSampleFilter filter = new SerialSampleFilter(new MeterSample(1).getThreshold());
+
+        assertAccepted(filter, rowKey(hash("S1")));
+        assertRejected(filter, new byte[SerialHashFilter.SERIAL_HASH_OFFSET + 8]);
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testParseInvalidLength() throws Exception {
+        SerialSampleFilter.parseFrom(new byte[4]);
+    }
+
+}
@@ -0,0 +1,114 @@
+package eu.daiad.mapreduce.hbase.input;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.junit.Test;
+
+public class BalancedMultiTableInputFormatTest {
+
+    private static final TableName TABLE = TableName.valueOf("meter-data");
+
+    private static final long HOUR = 3600;
+
+    private static final long DAY = 86400;
+
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void testSubRangesContainTimeBuckets() throws Exception {
+        long from = bucket(HOUR);
+        TableSplit split = split(rowKey(from), rowKey(from + 2 * HOUR));
+
+        List<InputSplit> result = BalancedMultiTableInputFormat.divide(split, 4 * MB, MB, HOUR);
+
+        assertEquals(2, result.size());
+        assertArrayEquals(split.getStartRow(), ((TableSplit) result.get(0)).getStartRow());
+        assertArrayEquals(rowKey(from + HOUR), ((TableSplit) result.get(0)).getEndRow());
+        assertArrayEquals(rowKey(from + HOUR), ((TableSplit) result.get(1)).getStartRow());
+        assertArrayEquals(split.getEndRow(), ((TableSplit) result.get(1)).getEndRow());
+        for (InputSplit subRange : result) {
+            assertEquals(2 * MB, subRange.getLength());
+        }
+    }
+
+    @Test
+    public void testBoundariesAreMultiplesOfInterval() throws Exception {
+        long from = bucket(DAY);
+        long to = from + 10 * DAY;
+
+        // The end row of a scan is the closest row after the time bucket prefix
+        byte[] endRow = Bytes.add(rowKey(to), new byte[] { 0 });
+        TableSplit split = split(rowKey(from), endRow);
+
+        List<InputSplit> result = BalancedMultiTableInputFormat.divide(split, 4 * MB, MB, DAY);
+
+        assertEquals(4, result.size());
+
+        long previous = from;
+        for (int i = 0; i < result.size(); i++) {
+            TableSplit subRange = (TableSplit) result.get(i);
+            if (i > 0) {
+                assertArrayEquals(((TableSplit) result.get(i - 1)).getEndRow(), subRange.getStartRow());
+            }
+            if (i < result.size() - 1) {
+                long bucket = Bytes.toLong(subRange.getEndRow(), Bytes.SIZEOF_SHORT);
+
+                assertEquals(0, bucket % DAY);
+                assertTrue(bucket > previous);
+                assertTrue(bucket < to);
+                previous = bucket;
+            }
+            assertEquals(MB, subRange.getLength());
+        }
+        assertArrayEquals(endRow, ((TableSplit) result.get(result.size() - 1)).getEndRow());
+    }
+
+    @Test
+    public void testSingleTimeBucketIsNotDivided() throws Exception {
+        long from = bucket(HOUR);
+        TableSplit split = split(rowKey(from), rowKey(from + HOUR));
+
+        List<InputSplit> result = BalancedMultiTableInputFormat.divide(split, 8 * MB, MB, HOUR);
+
+        assertEquals(1, result.size());
+        assertSame(split, result.get(0));
+    }
+
+    @Test
+    public void testSmallSplitIsNotDivided() throws Exception {
+        long from = bucket(HOUR);
+        TableSplit split = split(rowKey(from), rowKey(from + 100 * HOUR));
+
+        List<InputSplit> result = BalancedMultiTableInputFormat.divide(split, MB, MB, HOUR);
+
+        assertEquals(1, result.size());
+        assertSame(split, result.get(0));
+    }
+
+    /**
+     * Returns a time bucket value of the input table aligned to an interval.
+     */
+    private static long bucket(long interval) {
+        long bucket = (Long.MAX_VALUE / 1000) - 1490000000L;
+        return bucket - (bucket % interval);
+    }
+
+    private static byte[] rowKey(long bucket) {
+        return Bytes.add(Bytes.toBytes((short) 1), Bytes.toBytes(bucket));
+    }
+
+    private static TableSplit split(byte[] startRow, byte[] endRow) {
+        return new TableSplit(TABLE, new Scan(), startRow, endRow, "localhost", 0);
+    }
+
+}
@@ -0,0 +1,94 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+
+public class DateUtilsTest {
+
+    private static final String[] ZONES = { "UTC", "Europe/Athens", "America/Sao_Paulo", "Pacific/Chatham" };
+
+    @Test
+    public void testExactIntervalIsNotWidened() {
+        DateUtils dateUtils = createExactDateUtils("20161015", "20161015");
+
+        Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+
+        assertEquals(new DateTime(2016, 10, 15, 0, 0, DateTimeZone.UTC), dateInterval.getFrom());
+        assertEquals(new DateTime(2016, 10, 15, 23, 0, DateTimeZone.UTC), dateInterval.getTo());
+    }
+
+    @Test
+    public void testExactIntervalSkipsPartialBuckets() {
+        DateUtils dateUtils = createExactDateUtils("20161015", "20161015");
+
+        for (String zone : ZONES) {
+            TimeBucketCalculator calculator = createCalculator(dateUtils, zone);
+
+            assertFalse(zone, calculator.checkInterval(2016101423L, EnumGranularity.HOUR));
+            assertTrue(zone, calculator.checkInterval(2016101500L, EnumGranularity.HOUR));
+            assertTrue(zone, calculator.checkInterval(2016101523L, EnumGranularity.HOUR));
+            assertFalse(zone, calculator.checkInterval(2016101600L, EnumGranularity.HOUR));
+
+            assertTrue(zone, calculator.checkInterval(2016101500L, EnumGranularity.DAY));
+            assertFalse(zone, calculator.checkInterval(2016101400L, EnumGranularity.DAY));
+
+            assertFalse(zone, calculator.checkInterval(2016101000L, EnumGranularity.WEEK));
+            assertFalse(zone, calculator.checkInterval(2016100100L, EnumGranularity.MONTH));
+            assertFalse(zone, calculator.checkInterval(2016010100L, EnumGranularity.YEAR));
+        }
+    }
+
+    @Test
+    public void testExactIntervalAggregatesCompleteBuckets() {
+        DateUtils dateUtils = createExactDateUtils("20161001", "20161031");
+
+        for (String zone : ZONES) {
+            TimeBucketCalculator calculator = createCalculator(dateUtils, zone);
+
+            // 2016-09-26 and 2016-10-31 are the Mondays of partial weeks
+            assertFalse(zone, calculator.checkInterval(2016092600L, EnumGranularity.WEEK));
+            assertTrue(zone, calculator.checkInterval(2016100300L, EnumGranularity.WEEK));
+            assertTrue(zone, calculator.checkInterval(2016102400L, EnumGranularity.WEEK));
+            assertFalse(zone, calculator.checkInterval(2016103100L, EnumGranularity.WEEK));
+
+            assertFalse(zone, calculator.checkInterval(2016090100L, EnumGranularity.MONTH));
+            assertTrue(zone, calculator.checkInterval(2016100100L, EnumGranularity.MONTH));
+            assertFalse(zone, calculator.checkInterval(2016110100L, EnumGranularity.MONTH));
+
+            assertFalse(zone, calculator.checkInterval(2016010100L, EnumGranularity.YEAR));
+        }
+
+        dateUtils = createExactDateUtils("20160101", "20161231");
+
+        for (String zone : ZONES) {
+            TimeBucketCalculator calculator = createCalculator(dateUtils, zone);
+
+            assertTrue(zone, calculator.checkInterval(2016010100L, EnumGranularity.YEAR));
+            assertTrue(zone, calculator.checkInterval(2016120100L, EnumGranularity.MONTH));
+            assertFalse(zone, calculator.checkInterval(2016122600L, EnumGranularity.WEEK));
+        }
+    }
+
+    private static TimeBucketCalculator createCalculator(DateUtils dateUtils, String zone) {
+        return new TimeBucketCalculator(DateTimeZone.forID(zone), dateUtils.getDateInterval(), dateUtils.getBucketInterval(), true);
+    }
+
+    private static DateUtils createExactDateUtils(String from, String to) {
+        Configuration conf = new Configuration(false);
+        conf.set(EnumAggregationJobParameter.DATE_FORMAT.getValue(), "yyyyMMdd");
+        conf.set(EnumAggregationJobParameter.DATE_FROM.getValue(), from);
+        conf.set(EnumAggregationJobParameter.DATE_TO.getValue(), to);
+        conf.setBoolean(EnumAggregationJobParameter.INTERVAL_EXACT.getValue(), true);
+
+        return new DateUtils(conf);
+    }
+
+}
@@ -0,0 +1,283 @@
+package eu.daiad.mapreduce.hbase.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import eu.daiad.mapreduce.hbase.EnumAggregationJobParameter;
+
+/**
+ * Compares {@link TimeBucketCalculator} and {@link RowTimeBuckets} with the
+ * Joda based bucketing they replaced. The reference implementation is the
+ * former {@code unixTimestampToLong} and {@code checkInterval} methods of the
+ * mappers.
+ */
+public class TimeBucketCalculatorTest {
+
+    private static final long MILLIS_PER_MINUTE = 60000L;
+
+    private static final long MILLIS_PER_HOUR = 3600000L;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final EnumGranularity[] GRANULARITIES = EnumGranularity.values();
+
+    /**
+     * Time zones with DST gaps and overlaps, DST transitions at midnight,
+     * fractional offsets, a 30 minute DST shift and a skipped day.
+     */
+    private static final String[] ZONES = {
+        "UTC",
+        "Europe/Athens",
+        "Europe/London",
+        "America/St_Johns",
+        "America/Sao_Paulo",
+        "America/Havana",
+        "Asia/Kathmandu",
+        "Asia/Kolkata",
+        "Australia/Lord_Howe",
+        "Pacific/Chatham",
+        "Pacific/Apia"
+    };
+
+    /**
+     * Requested intervals. The first crosses the day skipped by Pacific/Apia
+     * and a week that spans two years, the second covers a full DST season
+     * and the third crosses a week that starts in the 53rd ISO week.
+     */
+    private static final String[][] INTERVALS = {
+        { "20111110", "20120210" },
+        { "20160315", "20161120" },
+        { "20201201", "20210305" }
+    };
+
+    /**
+     * Offsets around every UTC offset transition.
+     */
+    private static final long[] TRANSITION_OFFSETS = {
+        -MILLIS_PER_HOUR, -30 * MILLIS_PER_MINUTE, -MILLIS_PER_MINUTE, -1, 0, 1,
+        MILLIS_PER_MINUTE, 30 * MILLIS_PER_MINUTE, MILLIS_PER_HOUR
+    };
+
+    @Test
+    public void testBucketValuesMatchJoda() {
+        for (String[] requested : INTERVALS) {
+            DateUtils dateUtils = createDateUtils(requested[0], requested[1]);
+            Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+
+            for (String zone : ZONES) {
+                DateTimeZone timezone = DateTimeZone.forID(zone);
+                TimeBucketCalculator calculator = new TimeBucketCalculator(timezone, dateInterval, dateUtils.getBucketInterval());
+                long[][] bounds = referenceBounds(dateInterval, timezone);
+
+                long[] values = new long[GRANULARITIES.length];
+                for (long timestamp : getSamples(dateInterval, timezone)) {
+                    calculator.toLongs(timestamp, values);
+
+                    for (EnumGranularity granularity : GRANULARITIES) {
+                        int g = granularity.ordinal();
+                        long expected = referenceToLong(timestamp, timezone, granularity);
+                        String message = message(zone, timestamp, granularity);
+
+                        assertEquals(message, expected, calculator.toLong(timestamp, granularity));
+                        assertEquals(message, expected, values[g]);
+                        assertEquals(message,
+                                     (bounds[0][g] <= expected) && (expected <= bounds[1][g]),
+                                     calculator.checkInterval(values[g], granularity));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRowTimeBucketsMatchJoda() {
+        for (String[] requested : INTERVALS) {
+            DateUtils dateUtils = createDateUtils(requested[0], requested[1]);
+            Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+
+            for (String zone : ZONES) {
+                DateTimeZone timezone = DateTimeZone.forID(zone);
+                TimeBucketCalculator calculator = new TimeBucketCalculator(timezone, dateInterval, dateUtils.getBucketInterval());
+                long[][] bounds = referenceBounds(dateInterval, timezone);
+
+                long from = floor(dateInterval.getFrom().getMillis(), MILLIS_PER_DAY);
+                long to = dateInterval.getTo().getMillis();
+
+                // Rows of the meter data table cover an hour
+                RowTimeBuckets hourRows = new RowTimeBuckets(calculator);
+                for (long row = from; row < to; row += MILLIS_PER_HOUR) {
+                    long[] readings = { 0, 15 * MILLIS_PER_MINUTE, 30 * MILLIS_PER_MINUTE, 45 * MILLIS_PER_MINUTE, MILLIS_PER_HOUR - 1000 };
+
+                    assertRow(hourRows, row, MILLIS_PER_HOUR, readings, timezone, bounds);
+                }
+
+                // Rows of the forecasting data table cover a day
+                RowTimeBuckets dayRows = new RowTimeBuckets(calculator);
+                long[] readings = new long[49];
+                for (int i = 0; i < 48; i++) {
+                    readings[i] = i * 30 * MILLIS_PER_MINUTE;
+                }
+                readings[48] = MILLIS_PER_DAY - 1000;
+                for (long row = from; row < to; row += MILLIS_PER_DAY) {
+                    assertRow(dayRows, row, MILLIS_PER_DAY, readings, timezone, bounds);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRollupMatchesJoda() {
+        for (String[] requested : INTERVALS) {
+            DateUtils dateUtils = createDateUtils(requested[0], requested[1]);
+            Interval<DateTime> dateInterval = dateUtils.getDateInterval();
+
+            for (String zone : ZONES) {
+                DateTimeZone timezone = DateTimeZone.forID(zone);
+
+                for (long timestamp : getSamples(dateInterval, timezone)) {
+                    long hour = referenceToLong(timestamp, timezone, EnumGranularity.HOUR);
+                    long day = referenceToLong(timestamp, timezone, EnumGranularity.DAY);
+
+                    for (EnumGranularity granularity : GRANULARITIES) {
+                        long expected = referenceToLong(timestamp, timezone, granularity);
+                        String message = message(zone, timestamp, granularity);
+
+                        assertEquals(message, expected, TimeBucketCalculator.rollup(hour, granularity));
+                        if (granularity != EnumGranularity.HOUR) {
+                            assertEquals(message, expected, TimeBucketCalculator.rollup(day, granularity));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the bucket values of the readings of a single row.
+     */
+    private void assertRow(RowTimeBuckets buckets, long row, long length, long[] readings, DateTimeZone timezone, long[][] bounds) {
+        long[] values = new long[GRANULARITIES.length];
+        boolean[] inInterval = new boolean[GRANULARITIES.length];
+
+        buckets.prepare(row, row + length - 1000);
+
+        for (long reading : readings) {
+            long timestamp = row + reading;
+            buckets.toLongs(timestamp, values, inInterval);
+
+            for (EnumGranularity granularity : GRANULARITIES) {
+                int g = granularity.ordinal();
+                long expected = referenceToLong(timestamp, timezone, granularity);
+                String message = message(timezone.getID(), timestamp, granularity);
+
+                assertEquals(message, expected, values[g]);
+                assertEquals(message, (bounds[0][g] <= expected) && (expected <= bounds[1][g]), inInterval[g]);
+            }
+        }
+    }
+
+    /**
+     * Returns timestamps every 15 minutes from three days before to three days
+     * after the date interval and around every offset transition inside it.
+     */
+    private List<Long> getSamples(Interval<DateTime> dateInterval, DateTimeZone timezone) {
+        List<Long> samples = new ArrayList<Long>();
+
+        long from = floor(dateInterval.getFrom().getMillis(), MILLIS_PER_DAY) - 3 * MILLIS_PER_DAY;
+        long to = dateInterval.getTo().getMillis() + 3 * MILLIS_PER_DAY;
+
+        for (long timestamp = from; timestamp <= to; timestamp += 15 * MILLIS_PER_MINUTE) {
+            samples.add(timestamp);
+        }
+
+        long transition = timezone.nextTransition(from);
+        while ((transition > from) && (transition < to)) {
+            for (long offset : TRANSITION_OFFSETS) {
+                samples.add(transition + offset);
+            }
+            from = transition;
+            transition = timezone.nextTransition(from);
+        }
+
+        return samples;
+    }
+
+    private static DateUtils createDateUtils(String from, String to) {
+        Configuration conf = new Configuration(false);
+        conf.set(EnumAggregationJobParameter.DATE_FORMAT.getValue(), "yyyyMMdd");
+        conf.set(EnumAggregationJobParameter.DATE_FROM.getValue(), from);
+        conf.set(EnumAggregationJobParameter.DATE_TO.getValue(), to);
+
+        return new DateUtils(conf);
+    }
+
+    private static long floor(long value, long unit) {
+        long result = (value / unit) * unit;
+        return (result > value ? result - unit : result);
+    }
+
+    private static String message(String zone, long timestamp, EnumGranularity granularity) {
+        return String.format("%s %s %s", zone, new DateTime(timestamp, DateTimeZone.UTC), granularity);
+    }
+
+    /**
+     * Former Joda based computation of a bucket value.
+     */
+    private static long referenceToLong(long timestamp, DateTimeZone timezone, EnumGranularity granularity) {
+        DateTime date = new DateTime(timestamp, timezone);
+
+        switch (granularity) {
+            case HOUR:
+                return date.getYear() * 1000000 +
+                       date.getMonthOfYear() * 10000 +
+                       date.getDayOfMonth() * 100 +
+                       date.getHourOfDay();
+            case DAY:
+                return date.getYear() * 1000000 +
+                       date.getMonthOfYear() * 10000 +
+                       date.getDayOfMonth() * 100;
+            case WEEK:
+                DateTime monday = date.withDayOfWeek(DateTimeConstants.MONDAY);
+
+                return monday.getYear() * 1000000 +
+                       monday.getMonthOfYear() * 10000 +
+                       monday.getDayOfMonth() * 100;
+            case MONTH:
+                return date.getYear() * 1000000 +
+                       date.getMonthOfYear() * 10000 + 100;
+            case YEAR:
+                return date.getYear() * 1000000 + 10100;
+            default:
+                throw new IllegalArgumentException(String.format("Granularity [%s] is not supported.", granularity.toString()));
+        }
+    }
+
+    /**
+     * Former Joda based interval bounds of every granularity level. The
+     * former {@code checkInterval} computed the same bounds on every call.
+     *
+     * @return the lower bounds and the upper bounds indexed by granularity.
+     */
+    private static long[][] referenceBounds(Interval<DateTime> dateInterval, DateTimeZone timezone) {
+        DateTime localFrom = dateInterval.getFrom().withZoneRetainFields(timezone)
+                                         .plusMonths(1).dayOfMonth().withMinimumValue();
+        DateTime localTo = dateInterval.getTo().withZoneRetainFields(timezone)
+                                       .minusMonths(1).dayOfMonth().withMaximumValue();
+
+        long[][] bounds = new long[2][GRANULARITIES.length];
+        for (EnumGranularity granularity : GRANULARITIES) {
+            bounds[0][granularity.ordinal()] = referenceToLong(localFrom.getMillis(), timezone, granularity);
+            bounds[1][granularity.ordinal()] = referenceToLong(localTo.getMillis(), timezone, granularity);
+        }
+        return bounds;
+    }
+
+}